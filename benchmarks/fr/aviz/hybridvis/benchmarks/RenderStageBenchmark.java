@@ -0,0 +1,272 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import fr.aviz.hybridvis.HybridImagePipeline;
+import fr.aviz.hybridvis.HybridImageRendererSettings.BlurEngine;
+import fr.aviz.hybridvis.display.DisplayConfiguration;
+import fr.aviz.hybridvis.filters.ContrastFilter;
+import fr.aviz.hybridvis.filters.HybridCompositor;
+import fr.aviz.hybridvis.utils.DisplayConfigurationReader;
+import fr.aviz.hybridvis.utils.ImageStatistics;
+import fr.aviz.hybridvis.utils.TiledSpectrumEstimator;
+
+/**
+ * Measures each stage of HybridImageRenderer.renderHybridImage() on a SyntheticScene rendered at the
+ * resolution of a display of resources/displays (scaled by <pre>scale</pre>), with the default settings.
+ *
+ * Each benchmark method runs one stage on a whole image; the inputs it modifies in place are restored
+ * before each invocation, outside of the measurement. Besides operations per second, the <pre>megapixels</pre>
+ * counter reports the throughput in rendered megapixels per second. Run with the gc profiler
+ * (<pre>-prof gc</pre>, as the Ant benchmark target does) to get the allocation per operation
+ * (gc.alloc.rate.norm). It only counts the benchmark thread: buffers allocated by the threads of
+ * ParallelRows or of the spectrum estimator are not included.
+ *
+ * In the renderer, the near contrast and the post contrast are applied by the compositor in the same
+ * pass as compositing; they are measured here as separate ContrastFilter passes, and compositing without them.
+ * Full-resolution images of the largest walls need several gigabytes of heap (see the benchmark.heap
+ * property of build.xml).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RenderStageBenchmark {
+
+  @Param({"AppleCinemaDisplay", "NEC_X551UN_2x2", "KonstanzWall", "I4D", "WILDER", "WILD"})
+  public String display;
+
+  /** Size of the rendered image relative to the display resolution */
+  @Param({"1"})
+  public double scale;
+
+  @Param({"CONVOLUTION"})
+  public BlurEngine blurEngine;
+
+  /** Folder of the display configurations */
+  @Param({"resources/displays"})
+  public String displayFolder;
+
+  /**
+   * Throughput in rendered megapixels per second.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Pixels {
+    public double megapixels;
+
+    @Setup(Level.Iteration)
+    public void reset(){
+      megapixels = 0;
+    }
+  }
+
+  private SyntheticScene scene;
+  private HybridImagePipeline pipeline;
+  private Rectangle2D bounds;
+  private double megapixels;
+
+  // Layers as drawn, as filtered, and composited
+  private BufferedImage near;
+  private BufferedImage far;
+  private BufferedImage filteredNear;
+  private BufferedImage filteredFar;
+  private BufferedImage composited;
+  // Image the stages write to, restored before each invocation
+  private BufferedImage work;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException{
+    final DisplayConfiguration config = DisplayConfigurationReader.fromFile(new File(displayFolder, display + ".properties"));
+    scene = new SyntheticScene(config);
+    scene.setBlurEngine(blurEngine);
+    pipeline = scene.getPipeline();
+    final int width = (int)Math.round(config.getXResolution() * scale);
+    final int height = (int)Math.round(config.getYResolution() * scale);
+    bounds = new Rectangle2D.Double(0, 0, width, height);
+    megapixels = width * (double)height / 1e6;
+
+    near = newImage(width, height);
+    pipeline.drawNearLayer(near, bounds);
+    far = newImage(width, height);
+    pipeline.drawFarLayer(far, bounds);
+    filteredNear = copy(near, newImage(width, height));
+    pipeline.filterNearLayer(filteredNear, scene.getSettings(), scale);
+    filteredFar = copy(far, newImage(width, height));
+    pipeline.filterFarLayer(filteredFar, scene.getSettings(), scale);
+    composited = newImage(width, height);
+    clearToBackground(composited);
+    HybridImagePipeline.createCompositor(scene.getSettings()).composite(filteredNear, filteredFar, composited);
+    work = newImage(width, height);
+  }
+
+  @Setup(Level.Invocation)
+  public void restore(BenchmarkParams params){
+    final String stage = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1);
+    if(stage.equals("hipass")){
+      copy(near, work);
+    } else if(stage.equals("contrast")){
+      copy(filteredNear, work);
+    } else if(stage.equals("blur")){
+      copy(far, work);
+    } else if(stage.equals("composite")){
+      clearToBackground(work);
+    } else if(stage.equals("postContrast")){
+      copy(composited, work);
+    } else if(stage.equals("draw")){
+      Arrays.fill(getPixels(work), 0);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown(){
+    scene = null;
+    near = far = filteredNear = filteredFar = composited = work = null;
+  }
+
+  /** Drawing of the near and far layers, into the same image */
+  @Benchmark
+  public BufferedImage draw(Pixels pixels){
+    pipeline.drawNearLayer(work, bounds);
+    pipeline.drawFarLayer(work, bounds);
+    pixels.megapixels += megapixels;
+    return work;
+  }
+
+  /** High-pass filter of the near layer */
+  @Benchmark
+  public BufferedImage hipass(Pixels pixels){
+    pipeline.filterNearLayer(work, scene.getSettings(), scale);
+    pixels.megapixels += megapixels;
+    return work;
+  }
+
+  /** Contrast and brightness of the high-passed near layer */
+  @Benchmark
+  public BufferedImage contrast(Pixels pixels){
+    new ContrastFilter((float)scene.getHipassContrast(), (float)scene.getHipassBrightness()).filter(work, work);
+    pixels.megapixels += megapixels;
+    return work;
+  }
+
+  /** Blur of the far layer */
+  @Benchmark
+  public BufferedImage blur(Pixels pixels){
+    pipeline.filterFarLayer(work, scene.getSettings(), scale);
+    pixels.megapixels += megapixels;
+    return work;
+  }
+
+  /** Compositing of the filtered layers over the background, without contrast transforms */
+  @Benchmark
+  public BufferedImage composite(Pixels pixels){
+    final HybridCompositor compositor = HybridImagePipeline.createCompositor(scene.getSettings());
+    compositor.setNearContrast(null);
+    compositor.setPostContrast(null);
+    compositor.composite(filteredNear, filteredFar, work);
+    pixels.megapixels += megapixels;
+    return work;
+  }
+
+  /** Contrast and brightness of the composited image */
+  @Benchmark
+  public BufferedImage postContrast(Pixels pixels){
+    new ContrastFilter((float)scene.getPostContrast(), (float)scene.getPostBrightness()).filter(work, work);
+    pixels.megapixels += megapixels;
+    return work;
+  }
+
+  /** Samples and spectra of the layers and of the result, as drawn in previews */
+  @Benchmark
+  public float[][] spectrum(Pixels pixels){
+    final BufferedImage processed = ImageStatistics.getSpectrumSample(filteredNear);
+    new ContrastFilter((float)scene.getHipassContrast(), (float)scene.getHipassBrightness()).filter(processed, processed);
+    final float[][] spectra = {
+        ImageStatistics.get1dFrequencies(ImageStatistics.getSpectrumSample(near)),
+        ImageStatistics.get1dFrequencies(processed),
+        ImageStatistics.get1dFrequencies(ImageStatistics.getSpectrumSample(far)),
+        ImageStatistics.get1dFrequencies(ImageStatistics.getSpectrumSample(filteredFar)),
+        ImageStatistics.get1dFrequencies(ImageStatistics.getSpectrumSample(composited))
+    };
+    pixels.megapixels += megapixels;
+    return spectra;
+  }
+
+  /** Spectrum of the whole composited image, estimated over patches */
+  @Benchmark
+  public float[] tiledSpectrum(Pixels pixels){
+    final float[] spectrum = new TiledSpectrumEstimator().get1dFrequencies(composited);
+    pixels.megapixels += megapixels;
+    return spectrum;
+  }
+
+  private static BufferedImage newImage(int width, int height){
+    return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+  }
+
+  private static int[] getPixels(BufferedImage image){
+    return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+  }
+
+  private static BufferedImage copy(BufferedImage src, BufferedImage dst){
+    System.arraycopy(getPixels(src), 0, getPixels(dst), 0, getPixels(src).length);
+    return dst;
+  }
+
+  /**
+   * Fills an image with the background of the scene, as drawn before compositing.
+   */
+  private void clearToBackground(BufferedImage image){
+    Arrays.fill(getPixels(image), 0);
+    final Graphics2D g = image.createGraphics();
+    HybridImagePipeline.setDefaultRenderingHints(g);
+    pipeline.getContent().drawBackground(g, bounds);
+    g.dispose();
+  }
+}
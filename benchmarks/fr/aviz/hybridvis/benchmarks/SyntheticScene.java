@@ -0,0 +1,87 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+
+import fr.aviz.hybridvis.HybridImageRenderer;
+import fr.aviz.hybridvis.display.DisplayConfiguration;
+
+/**
+ * A deterministic scene filling the whole simulated display, for benchmarks: the near layer holds the
+ * sine gratings of HybridSignalTest, and the far layer the luminance chirp of CampbellRobsonChart
+ * (without the CSF curve), drawn with the step sizes of its final rendering.
+ */
+public class SyntheticScene extends HybridImageRenderer {
+
+  /** Periods of the near gratings, in wall pixels, and their opacities */
+  private static final double[] NEAR_PERIODS = {100, 20};
+  private static final float[] NEAR_ALPHAS = {1f, 0.3f};
+
+  /** See CampbellRobsonChart */
+  private static final double INITIAL_PERIOD_COEFF = 7.38;
+  private static final int CHIRP_STEP = 10;
+
+  public SyntheticScene(DisplayConfiguration simulatedDisplay){
+    super(simulatedDisplay);
+  }
+
+  @Override
+  protected boolean isDrawingThreadSafe(){
+    return true;
+  }
+
+  @Override
+  public void drawNearGraphics(Graphics2D g){
+    final int w = getSimulatedDisplay().getXResolution();
+    final int h = getSimulatedDisplay().getYResolution();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+    for(int i = 0; i < NEAR_PERIODS.length; ++i){
+      for(int x = 0; x <= w; x++){
+        final double brightness = (Math.sin(x * 2 * Math.PI / NEAR_PERIODS[i]) + 1.0) / 2.0;
+        g.setColor(new Color((float)brightness, (float)brightness, (float)brightness, NEAR_ALPHAS[i]));
+        g.drawRect(x, 0, 1, h);
+      }
+    }
+  }
+
+  @Override
+  public void drawFarGraphics(Graphics2D g){
+    final int w = getSimulatedDisplay().getXResolution();
+    final int h = getSimulatedDisplay().getYResolution();
+    final Rectangle2D.Double rect = new Rectangle2D.Double();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+    final double a = INITIAL_PERIOD_COEFF / w;
+    for(int x = 0; x <= w; x += CHIRP_STEP){
+      final double sinX = Math.sin(Math.exp(1 + a * x));
+      for(int y = 0; y <= h; y += CHIRP_STEP){
+        final double brightness = (sinX * Math.pow(y / (double)h, 3) + 1) / 2.0;
+        g.setColor(new Color((float)brightness, (float)brightness, (float)brightness));
+        rect.setFrame(x, y, CHIRP_STEP + 1, CHIRP_STEP + 1);
+        g.fill(rect);
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.aviz.hybridvis;
+
+import java.awt.image.BufferedImage;
+
+import fr.aviz.hybridvis.filters.BufferPool;
+
+/**
+ * A filtered layer (near or far image) of the preview, kept along with a key describing
+ * everything it was rendered from: view bounds, filter settings and content version.
+ * When only compositing settings change, the layer can be composited again without
+ * being drawn and filtered again.
+ *
+ * Layers are not thread-safe; they are only used by the preview rendering thread.
+ */
+class CachedLayer {
+
+  private Object key = null;
+  private BufferedImage image = null;
+  // Lookups that found the layer valid or not; read from other threads for display only
+  private volatile int hits = 0;
+  private volatile int misses = 0;
+  /** Spectrum samples of the layer before and after filtering, if they were taken */
+  BufferedImage rawSample = null;
+  BufferedImage filteredSample = null;
+
+  /**
+   * Returns whether the layer was completely rendered for <pre>key</pre>.
+   */
+  boolean isValid(Object key){
+    final boolean valid = this.key != null && this.key.equals(key);
+    if(valid){
+      hits++;
+    } else{
+      misses++;
+    }
+    return valid;
+  }
+
+  /**
+   * Returns the fraction of the calls to isValid() that found the layer valid, or NaN if there was none.
+   */
+  double getHitRate(){
+    final int h = hits;
+    final int total = h + misses;
+    return total == 0 ? Double.NaN : h / (double)total;
+  }
+
+  BufferedImage getImage(){
+    return image;
+  }
+
+  /**
+   * Invalidates the layer and returns a transparent image of the given size to render it into.
+   */
+  BufferedImage reset(int width, int height){
+    key = null;
+    rawSample = null;
+    filteredSample = null;
+    if(image == null || image.getWidth() != width || image.getHeight() != height){
+      BufferPool.release(image);
+      image = BufferPool.getImage(width, height);
+    } else{
+      BufferPool.clear(image);
+    }
+    return image;
+  }
+
+  /**
+   * Marks the image returned by reset() as completely rendered for <pre>key</pre>.
+   */
+  void validate(Object key){
+    this.key = key;
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import fr.aviz.hybridvis.utils.NoOpProgressMonitor;
+import fr.aviz.hybridvis.utils.RenderMetrics;
+
+/**
+ * Renders hybrid image projects (as saved by HybridImageGenerator) to disk from the command line,
+ * without opening any window, so that images can be generated on headless machines (e.g., the nodes
+ * of a cluster driving a wall-sized display).
+ *
+ * Usage: HybridImageBatch [options] display.properties project.properties...
+ *
+ * All projects are rendered for the given display. Several projects are rendered concurrently by a
+ * bounded pool of workers (-j), which share the processors: each project is rendered tile by tile with
+ * availableProcessors / workers threads. Memory use grows with the number of workers, since each of them
+ * holds the images of its project and the tiles being rendered.
+ *
+ * With -sweep, a parameter sweep (see ParameterSweep) is rendered for each project instead: one image per
+ * combination of the given values, and a contact sheet.
+ *
+ * Errors are reported per project, and do not prevent the other projects from being rendered.
+ * The exit status is 1 if any project failed.
+ */
+public class HybridImageBatch {
+
+  protected final File displayFile;
+  protected File outputFolder = null;
+  protected int workers = 1;
+  protected int tileSize = TiledRenderer.DEFAULT_TILE_SIZE;
+  protected boolean pyramid = false;
+  /** Swept parameter values, by parameter name */
+  protected final Map<String, double[]> sweep = new LinkedHashMap<String, double[]>();
+  protected double sweepScale = 1;
+
+  public HybridImageBatch(File displayFile){
+    this.displayFile = displayFile;
+  }
+
+  /**
+   * Sets the folder in which images are written, or null to write each image next to its project (the default).
+   */
+  public void setOutputFolder(File outputFolder){
+    this.outputFolder = outputFolder;
+  }
+
+  /**
+   * Sets the number of projects rendered concurrently. The default is 1.
+   */
+  public void setWorkers(int workers){
+    if(workers <= 0){
+      throw new IllegalArgumentException("Invalid number of workers: " + workers);
+    }
+    this.workers = workers;
+  }
+
+  /**
+   * Sets the size of the tiles images are rendered with (see TiledRenderer).
+   */
+  public void setTileSize(int tileSize){
+    if(tileSize <= 0){
+      throw new IllegalArgumentException("Invalid tile size: " + tileSize);
+    }
+    this.tileSize = tileSize;
+  }
+
+  /**
+   * Sets whether zoomable tile pyramids (see PyramidExporter) are exported instead of PNG images.
+   */
+  public void setPyramid(boolean pyramid){
+    this.pyramid = pyramid;
+  }
+
+  /**
+   * Renders parameter sweeps over the given values instead of single images (see ParameterSweep.addParameter()).
+   */
+  public void addSweepParameter(String name, double... values){
+    if(!ParameterSweep.getParameterNames().contains(name)){
+      throw new IllegalArgumentException("Parameter cannot be swept: " + name);
+    }
+    sweep.put(name, values);
+  }
+
+  /**
+   * Sets the size of the images of parameter sweeps relative to the wall (see ParameterSweep.setScale()).
+   */
+  public void setSweepScale(double scale){
+    this.sweepScale = scale;
+  }
+
+  /**
+   * Renders all the projects, and waits for them to complete.
+   * @return the number of projects that could not be rendered.
+   */
+  public int render(List<File> projectFiles) throws InterruptedException{
+    if(projectFiles.isEmpty()){
+      return 0;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, projectFiles.size()));
+    final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+    final List<Future<File>> results = new ArrayList<Future<File>>();
+    try{
+      for(final File projectFile : projectFiles){
+        results.add(executor.submit(new Callable<File>(){
+          public File call() throws IOException{
+            return render(projectFile, parallelism);
+          }
+        }));
+      }
+      int failures = 0;
+      for(int i = 0; i < results.size(); i++){
+        try{
+          final File output = results.get(i).get();
+          System.out.println(projectFiles.get(i) + " -> " + output);
+        } catch(ExecutionException e){
+          failures++;
+          System.err.println(projectFiles.get(i) + ": " + e.getCause());
+        }
+      }
+      return failures;
+    } finally{
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Renders one project.
+   * @param parallelism - number of tiles rendered concurrently.
+   * @return the file or folder written.
+   */
+  protected File render(File projectFile, int parallelism) throws IOException{
+    final HybridImageProject project = HybridImageProject.load(projectFile, displayFile);
+    final File folder = outputFolder != null ? outputFolder : projectFile.getAbsoluteFile().getParentFile();
+    String name = projectFile.getName();
+    if(name.endsWith(".properties")){
+      name = name.substring(0, name.length() - ".properties".length());
+    }
+
+    if(!sweep.isEmpty()){
+      final ParameterSweep parameterSweep = new ParameterSweep(project.getPipeline(), project.getSimulatedDisplay(), project.getSettings());
+      for(Map.Entry<String, double[]> p : sweep.entrySet()){
+        parameterSweep.addParameter(p.getKey(), p.getValue());
+      }
+      parameterSweep.setScale(sweepScale);
+      parameterSweep.setParallelism(parallelism);
+      return parameterSweep.render(folder, name, new NoOpProgressMonitor());
+    }
+
+    if(pyramid){
+      final PyramidExporter exporter = new PyramidExporter(project, PyramidExporter.DEFAULT_TILE_SIZE, PyramidExporter.Layout.DEEP_ZOOM);
+      exporter.setRenderTileSize(tileSize);
+      exporter.setParallelism(parallelism);
+      exporter.export(folder, name, new NoOpProgressMonitor());
+      return new File(folder, name + ".dzi");
+    }
+
+    final TiledRenderer tiledRenderer = new TiledRenderer(project, tileSize, tileSize);
+    tiledRenderer.setParallelism(parallelism);
+    final File dstFile = new File(folder, name + ".png");
+    tiledRenderer.renderToPNG(dstFile, Deflater.DEFAULT_COMPRESSION, new NoOpProgressMonitor());
+    return dstFile;
+  }
+
+  private static void printUsage(){
+    System.err.println("Usage: HybridImageBatch [options] display.properties project.properties...");
+    System.err.println("Options:");
+    System.err.println(" -o <folder>  output folder (default: the folder of each project)");
+    System.err.println(" -j <n>       number of projects rendered concurrently (default: 1)");
+    System.err.println(" -t <size>    size of the tiles images are rendered with (default: " + TiledRenderer.DEFAULT_TILE_SIZE + ")");
+    System.err.println(" -pyramid     export zoomable tile pyramids (Deep Zoom) instead of PNG images");
+    System.err.println(" -sweep <parameter>=<value>,<value>...");
+    System.err.println("              render one image per combination of values, and a contact sheet (repeatable)");
+    System.err.println("              parameters: " + ParameterSweep.getParameterNames());
+    System.err.println(" -scale <s>   size of the sweep images relative to the wall (default: 1)");
+    System.err.println(" -metrics <file>");
+    System.err.println("              write the render metrics of all tiles, as CSV if the file ends with .csv, JSON otherwise");
+  }
+
+  public static void main(String[] args) throws InterruptedException{
+    // Must be set before AWT is initialized; can be overridden with -Djava.awt.headless=false
+    if(System.getProperty("java.awt.headless") == null){
+      System.setProperty("java.awt.headless", "true");
+    }
+    File outputFolder = null;
+    int workers = 1;
+    int tileSize = TiledRenderer.DEFAULT_TILE_SIZE;
+    boolean pyramid = false;
+    final Map<String, double[]> sweep = new LinkedHashMap<String, double[]>();
+    double sweepScale = 1;
+    File metricsFile = null;
+    int optind = 0;
+
+    try{
+      while(optind < args.length){
+        if(args[optind].equals("-h") || args[optind].equals("-help") || args[optind].equals("--help")){
+          printUsage();
+          return;
+        } else if(args[optind].equals("-o")){
+          outputFolder = new File(args[++optind]);
+        } else if(args[optind].equals("-j")){
+          workers = Integer.parseInt(args[++optind]);
+        } else if(args[optind].equals("-t")){
+          tileSize = Integer.parseInt(args[++optind]);
+        } else if(args[optind].equals("-pyramid")){
+          pyramid = true;
+        } else if(args[optind].equals("-sweep")){
+          final String[] param = args[++optind].split("=", 2);
+          final String[] values = param[1].split(",");
+          final double[] v = new double[values.length];
+          for(int i = 0; i < values.length; i++){
+            v[i] = Double.parseDouble(values[i]);
+          }
+          sweep.put(param[0], v);
+        } else if(args[optind].equals("-scale")){
+          sweepScale = Double.parseDouble(args[++optind]);
+        } else if(args[optind].equals("-metrics")){
+          metricsFile = new File(args[++optind]);
+        } else if(args[optind].equals("--")){
+          optind++;
+          break;
+        } else if(args[optind].startsWith("-")){
+          System.err.println("Unknown option " + args[optind]);
+          printUsage();
+          System.exit(2);
+        } else{
+          break;
+        }
+        ++optind;
+      }
+    } catch(RuntimeException e){
+      // Missing or malformed option value
+      printUsage();
+      System.exit(2);
+    }
+    if(args.length - optind < 2){
+      printUsage();
+      System.exit(2);
+    }
+
+    final HybridImageBatch batch = new HybridImageBatch(new File(args[optind++]));
+    final List<File> projectFiles = new ArrayList<File>();
+    while(optind < args.length){
+      projectFiles.add(new File(args[optind++]));
+    }
+    if(outputFolder != null && !outputFolder.isDirectory() && !outputFolder.mkdirs()){
+      System.err.println("Cannot create " + outputFolder);
+      System.exit(1);
+    }
+    batch.setOutputFolder(outputFolder);
+    batch.setWorkers(workers);
+    batch.setTileSize(tileSize);
+    batch.setPyramid(pyramid);
+    try{
+      for(Map.Entry<String, double[]> p : sweep.entrySet()){
+        batch.addSweepParameter(p.getKey(), p.getValue());
+      }
+      batch.setSweepScale(sweepScale);
+    } catch(IllegalArgumentException e){
+      System.err.println(e.getMessage());
+      printUsage();
+      System.exit(2);
+    }
+    final int failed = batch.render(projectFiles);
+    if(metricsFile != null){
+      try{
+        RenderMetrics.getDefault().write(metricsFile);
+      } catch(IOException e){
+        System.err.println("Cannot write " + metricsFile + ": " + e.getMessage());
+        System.exit(1);
+      }
+    }
+    System.exit(failed > 0 ? 1 : 0);
+  }
+}
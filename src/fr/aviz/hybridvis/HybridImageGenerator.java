@@ -156,7 +156,11 @@ public class HybridImageGenerator {
 
    JMenu generate = new JMenu("Generate");
    final JMenuItem gi = new JMenuItem("Generate composite image");
+   final JMenuItem gs = new JMenuItem("Generate per-screen images");
+   final JMenuItem gp = new JMenuItem("Generate zoomable tile pyramid");
    generate.add(gi);
+   generate.add(gs);
+   generate.add(gp);
 
    retval.add(file);
    retval.add(project);
@@ -207,6 +211,18 @@ public class HybridImageGenerator {
      }
    });
 
+   gs.addActionListener(new ActionListener(){
+     public void actionPerformed(ActionEvent ae){
+       generateScreenImages();
+     }
+   });
+
+   gp.addActionListener(new ActionListener(){
+     public void actionPerformed(ActionEvent ae){
+       generateTilePyramid();
+     }
+   });
+
    return retval;
   }
 
@@ -275,6 +291,14 @@ public class HybridImageGenerator {
     viewer.saveHybridImageAsyncInteractive(projectPath);
   }
 
+  protected void generateScreenImages(){
+    viewer.saveScreenImagesAsyncInteractive(projectPath);
+  }
+
+  protected void generateTilePyramid(){
+    viewer.saveTilePyramidAsyncInteractive(projectPath);
+  }
+
   public void addPropertyChangeListener(PropertyChangeListener listener){
     pcs.addPropertyChangeListener(listener);
   }
@@ -341,11 +365,7 @@ class HybridImageViewer extends HybridImageRenderer {
   protected void computeImageBounds(){ 
     if(nearImage != null){
       // Place the hybrid map on the wall-sized display so its resolution is the same as the near image and it is centered.
-      mapImageBounds.setRect(
-        (getWallWidth() - nearImage.getWidth()) / 2,
-        (getWallHeight() - nearImage.getHeight()) / 2,
-        nearImage.getWidth(),
-        nearImage.getHeight());	
+      mapImageBounds.setBounds(HybridImageProject.getImageBounds(getSimulatedDisplay(), nearImage));
     }
   }
 
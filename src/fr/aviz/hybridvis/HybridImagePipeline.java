@@ -0,0 +1,599 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.aviz.hybridvis.HybridImageRendererSettings.BlurEngine;
+import fr.aviz.hybridvis.filters.CancellationToken;
+import fr.aviz.hybridvis.filters.ContrastFilter;
+import fr.aviz.hybridvis.filters.GaussianFilter;
+import fr.aviz.hybridvis.filters.HighPassFilter;
+import fr.aviz.hybridvis.filters.HybridCompositor;
+import fr.aviz.hybridvis.filters.ParallelRows;
+import fr.aviz.hybridvis.filters.RecursiveGaussianFilter;
+import fr.aviz.hybridvis.utils.ImageStatistics;
+import fr.aviz.hybridvis.utils.ProgressMonitor;
+import fr.aviz.hybridvis.utils.RenderEvents;
+import fr.aviz.hybridvis.utils.RenderMetrics;
+import fr.aviz.hybridvis.utils.TransparentHighPassFilter;
+
+/**
+ * Renders hybrid images: draws the near and far layers, high-passes the near layer, blurs the far layer
+ * and composites them. This is the rendering core of HybridImageRenderer, which does not depend on Swing,
+ * so that hybrid images can also be rendered headless (see HybridImageProject and HybridImageBatch).
+ *
+ * The content is provided by a Content, and all the rendering parameters by the settings passed to
+ * render(), so that a single pipeline can render with different settings concurrently.
+ * Each render is recorded in a RenderMetrics registry (RenderMetrics.getDefault() unless set otherwise),
+ * and emitted along with its stages as Flight Recorder events (see RenderEvents).
+ */
+public class HybridImagePipeline {
+
+  /**
+   * The visual content of a hybrid image.
+   * 
+   * Each method draws the entire content of the wall-sized display, translated and rescaled to fit the
+   * bounds provided (in graphics coordinates). The near and far layers are drawn concurrently if possible,
+   * so implementations must either be thread-safe or serialize their calls.
+   */
+  public static interface Content {
+    public void drawBackground(Graphics2D g, Rectangle2D bounds);
+    public void drawNear(Graphics2D g, Rectangle2D bounds);
+    public void drawFar(Graphics2D g, Rectangle2D bounds);
+  }
+
+  /**
+   * Renders near layers while the calling thread renders the far layer. The pool is bounded by the number of
+   * processors; idle threads stop after a while.
+   */
+  private static final ThreadPoolExecutor layerExecutor = new ThreadPoolExecutor(ParallelRows.getParallelism(), ParallelRows.getParallelism(),
+      10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r){
+          final Thread t = new Thread(r, "HybridImagePipeline-layer-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  static{
+    layerExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Threads on which render() renders both layers itself (see setConcurrentLayers()).
+   */
+  private static final ThreadLocal<Boolean> serialLayers = new ThreadLocal<Boolean>();
+
+  protected final Content content;
+  protected volatile RenderMetrics metrics = RenderMetrics.getDefault();
+
+  public HybridImagePipeline(Content content){
+    this.content = content;
+  }
+
+  public Content getContent(){
+    return content;
+  }
+
+  public RenderMetrics getMetrics(){
+    return metrics;
+  }
+
+  /**
+   * Sets the registry renders are recorded into, or null not to record them.
+   */
+  public void setMetrics(RenderMetrics metrics){
+    this.metrics = metrics;
+  }
+
+  /**
+   * Renders a hybrid image, using cached layers if they are not null.
+   * @param tmpNear - temporary image (for rendering the near image)
+   * @param tmpFar - temporary image (for rendering the far image)
+   * @param tmpFinal - temporary image (for compositing)
+   * @param dst - destination
+   * @param bounds - rendered wall bounds in graphics coordinates.
+   * @param pm - progress manager
+   * @param spectrumSamples - list receiving samples of the layers and of the result for power spectrum
+   * analysis (see ImageStatistics.getSpectrumSample()), or null if no analysis is needed.
+   * @param settings - settings to render with.
+   * @param wallWidth - horizontal resolution of the simulated display.
+   * @param version - content version, identifying cached layers along with the view and the settings.
+   */
+  public void render(final BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, final Rectangle2D bounds, final ProgressMonitor pm,
+      List<BufferedImage> spectrumSamples, final HybridImageRendererSettings settings, int wallWidth, final int version, final CachedLayer nearCache, CachedLayer farCache){
+    final RenderMetrics registry = metrics;
+    final RenderMetrics.Render render = registry == null ? null
+        : registry.start(tmpFinal.getWidth(), tmpFinal.getHeight(), getImageBytes(tmpNear, tmpFar, tmpFinal, nearCache, farCache));
+    final double scale = bounds.getWidth() / wallWidth;
+    final Rectangle region = new Rectangle((int)Math.round(-bounds.getX()), (int)Math.round(-bounds.getY()), tmpFinal.getWidth(), tmpFinal.getHeight());
+    final RenderEvents.Event event = RenderEvents.beginRender(region, scale, getHipassRadius(settings, scale), getBlurRadius(settings, scale));
+    boolean complete = false;
+    try{
+      complete = render(tmpNear, tmpFar, tmpFinal, dst, bounds, pm, spectrumSamples, settings, scale, version, nearCache, farCache, new Trace(render, region, pm));
+    } finally{
+      event.end(!complete);
+      if(render != null){
+        render.setCanceled(!complete);
+        registry.finish(render);
+      }
+    }
+  }
+
+  /**
+   * Renders a hybrid image, recording its stages with <pre>trace</pre>.
+   * @return false if the rendering was canceled.
+   */
+  private boolean render(final BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, final Rectangle2D bounds, final ProgressMonitor pm,
+      List<BufferedImage> spectrumSamples, final HybridImageRendererSettings settings, final double scale, final int version, final CachedLayer nearCache, CachedLayer farCache,
+      final Trace trace){
+    final RenderMetrics.Render render = trace.render;
+    final Graphics2D gFinal = (Graphics2D)tmpFinal.getGraphics();
+    setDefaultRenderingHints(gFinal);
+    setDefaultRenderingHints(dst);
+    // Spectra are computed later from small samples, so that analysis does not delay the rendering
+    final boolean spectra = settings.drawPowerSpectrum && spectrumSamples != null;
+
+    final HybridCompositor compositor = createCompositor(settings);
+
+    pm.setProgress(100);
+    // The near and far layers only share read-only inputs: render them concurrently when possible
+    Future<Layer> nearTask = null;
+    Layer nearResult = null;
+    Layer farResult = null;
+    try{
+      if(settings.drawNearImage){
+        if(settings.drawFarImage && ParallelRows.getParallelism() > 1 && serialLayers.get() == null){
+          nearTask = submitLayer(new Callable<Layer>(){
+            public Layer call(){
+              final long allocated = RenderMetrics.getThreadAllocatedBytes();
+              try{
+                return renderNearLayer(tmpNear, bounds, pm, settings, scale, spectra, version, nearCache, trace);
+              } finally{
+                if(render != null){
+                  render.addAllocatedBytes(RenderMetrics.getThreadAllocatedBytes() - allocated);
+                }
+              }
+            }
+          });
+        } else{
+          nearResult = renderNearLayer(tmpNear, bounds, pm, settings, scale, spectra, version, nearCache, trace);
+        }
+      }
+      if(settings.drawFarImage){
+        farResult = renderFarLayer(tmpFar, bounds, pm, settings, scale, spectra, version, farCache, trace);
+      }
+    } finally{
+      // The near layer is written to images owned by the caller: wait for it in any case
+      if(nearTask != null){
+        nearResult = awaitLayer(nearTask);
+      }
+    }
+    if(pm.isCanceled() || (settings.drawNearImage && nearResult == null) || (settings.drawFarImage && farResult == null)){
+      return false;
+    }
+    pm.setProgress(200);
+
+    BufferedImage near = null;
+    if(nearResult != null){
+      near = nearResult.image;
+      if(spectra){
+        // The near contrast is applied while compositing: only apply it to the sample of the processed near image
+        final Stage stage = trace.begin(RenderMetrics.SPECTRUM_SAMPLES, 0);
+        final BufferedImage processed = ImageStatistics.getSpectrumSample(near);
+        new ContrastFilter((float)settings.hipassContrast, (float)settings.hipassBrightness).filter(processed, processed);
+        spectrumSamples.add(nearResult.rawSample);
+        spectrumSamples.add(processed);
+        stage.end();
+      }
+    }
+
+    BufferedImage far = null;
+    if(farResult != null){
+      far = farResult.image;
+      if(spectra){
+        spectrumSamples.add(farResult.rawSample);
+        spectrumSamples.add(farResult.filteredSample);
+      }
+    }
+
+    if(pm.isCanceled()){
+      return false;
+    }
+    pm.setProgress(400);
+
+    if(settings.drawBackground){
+      final Stage stage = trace.begin(RenderMetrics.BACKGROUND, 0);
+      content.drawBackground(gFinal, bounds);
+      stage.end();
+    }
+
+    pm.setNote("Compositing images");
+    // Near contrast, near and far compositing and post contrast, in a single pass
+    Stage stage = trace.begin(RenderMetrics.COMPOSITE, 0);
+    compositor.composite(near, far, tmpFinal);
+    stage.end();
+
+    if(spectra){
+      stage = trace.begin(RenderMetrics.SPECTRUM_SAMPLES, 0);
+      spectrumSamples.add(ImageStatistics.getSpectrumSample(tmpFinal));
+      stage.end();
+    }
+
+    if(pm.isCanceled()){
+      return false;
+    }
+    pm.setProgress(800);
+
+    stage = trace.begin(RenderMetrics.COPY, 0);
+    dst.drawImage(tmpFinal, 0, 0, null);
+    stage.end();
+    return true;
+  }
+
+  /**
+   * Records the stages of a render into its metrics, if they are recorded, and as Flight Recorder events.
+   */
+  private static class Trace {
+    final RenderMetrics.Render render;
+    final Rectangle region;
+    final ProgressMonitor pm;
+
+    Trace(RenderMetrics.Render render, Rectangle region, ProgressMonitor pm){
+      this.render = render;
+      this.region = region;
+      this.pm = pm;
+    }
+
+    /**
+     * Starts timing a stage.
+     * @param radius - radius of the filter applied by the stage, in image pixels, or 0.
+     */
+    Stage begin(String name, double radius){
+      return new Stage(this, name, RenderEvents.beginStage(name, region, radius));
+    }
+  }
+
+  /**
+   * A stage of a render being timed.
+   */
+  private static class Stage {
+    final Trace trace;
+    final String name;
+    final RenderEvents.Event event;
+    final long start = System.nanoTime();
+
+    Stage(Trace trace, String name, RenderEvents.Event event){
+      this.trace = trace;
+      this.name = name;
+      this.event = event;
+    }
+
+    void end(){
+      if(trace.render != null){
+        trace.render.addStage(name, System.nanoTime() - start);
+      }
+      event.end(trace.pm.isCanceled());
+    }
+  }
+
+  /**
+   * Returns the size of the images a render works in.
+   */
+  private static long getImageBytes(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, CachedLayer nearCache, CachedLayer farCache){
+    long pixels = (long)tmpNear.getWidth() * tmpNear.getHeight() + (long)tmpFar.getWidth() * tmpFar.getHeight()
+        + (long)tmpFinal.getWidth() * tmpFinal.getHeight();
+    if(nearCache != null){
+      pixels += (long)tmpNear.getWidth() * tmpNear.getHeight();
+    }
+    if(farCache != null){
+      pixels += (long)tmpFar.getWidth() * tmpFar.getHeight();
+    }
+    return 4 * pixels;
+  }
+
+  /**
+   * A filtered layer and its spectrum samples before and after filtering, if they were taken.
+   */
+  private static class Layer {
+    final BufferedImage image;
+    final BufferedImage rawSample;
+    final BufferedImage filteredSample;
+
+    Layer(BufferedImage image, BufferedImage rawSample, BufferedImage filteredSample){
+      this.image = image;
+      this.rawSample = rawSample;
+      this.filteredSample = filteredSample;
+    }
+  }
+
+  /**
+   * Draws and filters the near layer, or returns the cached one if it is still valid.
+   * @return the layer, or null if the rendering was canceled.
+   */
+  private Layer renderNearLayer(BufferedImage tmpNear, Rectangle2D bounds, ProgressMonitor pm, HybridImageRendererSettings settings, double scale,
+      boolean spectra, int version, CachedLayer nearCache, Trace trace){
+    // Everything the filtered near layer depends on
+    final Object key = Arrays.asList(new Rectangle2D.Double(bounds.getX(), bounds.getY(), bounds.getWidth(), bounds.getHeight()),
+        tmpNear.getWidth(), tmpNear.getHeight(), settings.hipassRadius, settings.transparentHipass, spectra, version);
+    if(nearCache != null && nearCache.isValid(key)){
+      return new Layer(nearCache.getImage(), nearCache.rawSample, null);
+    }
+    final BufferedImage near = nearCache == null ? tmpNear : nearCache.reset(tmpNear.getWidth(), tmpNear.getHeight());
+    pm.setNote("Rendering near image");
+    Stage stage = trace.begin(RenderMetrics.DRAW_NEAR, 0);
+    drawNearLayer(near, bounds);
+    stage.end();
+    final BufferedImage rawSample = spectra ? takeSpectrumSample(near, trace) : null;
+    if(pm.isCanceled()){
+      return null;
+    }
+    stage = trace.begin(RenderMetrics.HIPASS, getHipassRadius(settings, scale));
+    filterNearLayer(near, settings, scale);
+    stage.end();
+    if(pm.isCanceled()){
+      return null;
+    }
+    if(nearCache != null){
+      nearCache.rawSample = rawSample;
+      nearCache.validate(key);
+    }
+    return new Layer(near, rawSample, null);
+  }
+
+  /**
+   * Draws and blurs the far layer, or returns the cached one if it is still valid.
+   * @return the layer, or null if the rendering was canceled.
+   */
+  private Layer renderFarLayer(BufferedImage tmpFar, Rectangle2D bounds, ProgressMonitor pm, HybridImageRendererSettings settings, double scale,
+      boolean spectra, int version, CachedLayer farCache, Trace trace){
+    // Everything the filtered far layer depends on
+    final Object key = Arrays.asList(new Rectangle2D.Double(bounds.getX(), bounds.getY(), bounds.getWidth(), bounds.getHeight()),
+        tmpFar.getWidth(), tmpFar.getHeight(), settings.blurRadius, settings.blurEngine, spectra, version);
+    if(farCache != null && farCache.isValid(key)){
+      return new Layer(farCache.getImage(), farCache.rawSample, farCache.filteredSample);
+    }
+    final BufferedImage far = farCache == null ? tmpFar : farCache.reset(tmpFar.getWidth(), tmpFar.getHeight());
+    pm.setNote("Rendering far image");
+    Stage stage = trace.begin(RenderMetrics.DRAW_FAR, 0);
+    drawFarLayer(far, bounds);
+    stage.end();
+    final BufferedImage rawSample = spectra ? takeSpectrumSample(far, trace) : null;
+    if(pm.isCanceled()){
+      return null;
+    }
+    stage = trace.begin(RenderMetrics.BLUR, getBlurRadius(settings, scale));
+    filterFarLayer(far, settings, scale);
+    stage.end();
+    final BufferedImage filteredSample = spectra ? takeSpectrumSample(far, trace) : null;
+    if(pm.isCanceled()){
+      return null;
+    }
+    if(farCache != null){
+      farCache.rawSample = rawSample;
+      farCache.filteredSample = filteredSample;
+      farCache.validate(key);
+    }
+    return new Layer(far, rawSample, filteredSample);
+  }
+
+  /**
+   * Takes a sample of a layer for power spectrum analysis (see ImageStatistics.getSpectrumSample()).
+   */
+  private static BufferedImage takeSpectrumSample(BufferedImage layer, Trace trace){
+    final Stage stage = trace.begin(RenderMetrics.SPECTRUM_SAMPLES, 0);
+    final BufferedImage sample = ImageStatistics.getSpectrumSample(layer);
+    stage.end();
+    return sample;
+  }
+
+  /**
+   * Draws the near layer into a transparent image.
+   * @param bounds - rendered wall bounds in image coordinates.
+   */
+  public void drawNearLayer(BufferedImage near, Rectangle2D bounds){
+    final Graphics2D g = near.createGraphics();
+    setDefaultRenderingHints(g);
+    content.drawNear(g, bounds);
+    g.dispose();
+  }
+
+  /**
+   * Draws the far layer into a transparent image.
+   * @param bounds - rendered wall bounds in image coordinates.
+   */
+  public void drawFarLayer(BufferedImage far, Rectangle2D bounds){
+    final Graphics2D g = far.createGraphics();
+    setDefaultRenderingHints(g);
+    content.drawFar(g, bounds);
+    g.dispose();
+  }
+
+  /**
+   * High-passes a drawn near layer in place, as specified by the settings.
+   * @param scale - size of a wall pixel in the image, in pixels.
+   */
+  public void filterNearLayer(BufferedImage near, HybridImageRendererSettings settings, double scale){
+    if(settings.hipassRadius > 0){
+      final HighPassFilter hipass = settings.transparentHipass ? new TransparentHighPassFilter() : new HighPassFilter();
+      hipass.setRadius(getHipassRadius(settings, scale));
+      hipass.filter(near, near);
+    }
+  }
+
+  /**
+   * Blurs a drawn far layer in place, as specified by the settings.
+   * @param scale - size of a wall pixel in the image, in pixels.
+   */
+  public void filterFarLayer(BufferedImage far, HybridImageRendererSettings settings, double scale){
+    if(settings.blurRadius > 0){
+      final BufferedImageOp blur = createBlurFilter(settings.blurEngine, getBlurRadius(settings, scale));
+      blur.filter(far, far);
+    }
+  }
+
+  /**
+   * Returns the radius of the high-pass filter of the near layer, in pixels of an image rendered at <pre>scale</pre>.
+   */
+  public static float getHipassRadius(HybridImageRendererSettings settings, double scale){
+    return (float)(settings.hipassRadius * scale);
+  }
+
+  /**
+   * Returns the radius of the blur of the far layer, in pixels of an image rendered at <pre>scale</pre>.
+   */
+  public static float getBlurRadius(HybridImageRendererSettings settings, double scale){
+    return (float)(settings.blurRadius * scale);
+  }
+
+  /**
+   * Returns a compositor applying the near contrast, the opacities and the post contrast of the settings
+   * to filtered layers.
+   */
+  public static HybridCompositor createCompositor(HybridImageRendererSettings settings){
+    final HybridCompositor compositor = new HybridCompositor();
+    compositor.setNearContrast(new ContrastFilter((float)settings.hipassContrast, (float)settings.hipassBrightness));
+    compositor.setNearOpacity((float)settings.nearImageOpacity);
+    compositor.setFarOpacity((float)settings.farImageOpacity);
+    compositor.setPostContrast(new ContrastFilter((float)settings.postContrast, (float)settings.postBrightness));
+    return compositor;
+  }
+
+  /**
+   * Sets whether render() may render the near layer on another thread while the calling thread renders
+   * the far layer, which is the default. Threads that already render concurrently with others, such as
+   * the tile threads of TiledRenderer, should disable it so that they do not oversubscribe the processors.
+   * @return the previous value for the thread, to be restored once the rendering is done.
+   */
+  public static boolean setConcurrentLayers(boolean concurrent){
+    final boolean previous = serialLayers.get() == null;
+    if(concurrent){
+      serialLayers.remove();
+    } else{
+      serialLayers.set(Boolean.TRUE);
+    }
+    return previous;
+  }
+
+  /**
+   * Renders a layer on the layer pool, with the cancellation token of the calling thread.
+   */
+  private static Future<Layer> submitLayer(final Callable<Layer> task){
+    final CancellationToken token = CancellationToken.getCurrent();
+    return layerExecutor.submit(new Callable<Layer>(){
+      public Layer call() throws Exception{
+        final CancellationToken previous = CancellationToken.setCurrent(token);
+        try{
+          return task.call();
+        } finally{
+          CancellationToken.setCurrent(previous);
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits for a layer submitted with submitLayer(), even if interrupted, and rethrows its exceptions.
+   */
+  private static Layer awaitLayer(Future<Layer> task){
+    boolean interrupted = false;
+    try{
+      while(true){
+        try{
+          return task.get();
+        } catch(InterruptedException e){
+          interrupted = true;
+        } catch(ExecutionException e){
+          final Throwable t = e.getCause();
+          if(t instanceof RuntimeException){
+            throw (RuntimeException)t;
+          } else if(t instanceof Error){
+            throw (Error)t;
+          }
+          throw new RuntimeException(t);
+        }
+      }
+    } finally{
+      if(interrupted){
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns the far image blur for the given blur engine. Subclasses may return other implementations.
+   */
+  protected BufferedImageOp createBlurFilter(BlurEngine blurEngine, float radius){
+    return newBlurFilter(blurEngine, radius);
+  }
+
+  /**
+   * Returns the default far image blur for the given blur engine.
+   */
+  public static BufferedImageOp newBlurFilter(BlurEngine blurEngine, float radius){
+    switch(blurEngine){
+    case RECURSIVE:
+      return new RecursiveGaussianFilter(radius);
+    default:
+      return new GaussianFilter(radius);
+    }
+  }
+
+  /**
+   * Returns how far (in pixels) the filters read around each output pixel when rendering
+   * with the given settings at the given scale (see WallImageSource.getFilterMargin()).
+   */
+  public static int getFilterMargin(HybridImageRendererSettings settings, double scale){
+    int margin = 0;
+    if(settings.drawNearImage && settings.hipassRadius > 0){
+      margin = Math.max(margin, (int)Math.ceil(settings.hipassRadius * scale));
+    }
+    if(settings.drawFarImage && settings.blurRadius > 0){
+      final float radius = (float)(settings.blurRadius * scale);
+      // The recursive filter has an infinite support; cut it where it becomes negligible
+      margin = Math.max(margin, settings.blurEngine == BlurEngine.RECURSIVE ? RecursiveGaussianFilter.getSupport(radius) : (int)Math.ceil(radius));
+    }
+    return margin;
+  }
+
+  public static void setDefaultRenderingHints(Graphics2D g){
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+  }
+}
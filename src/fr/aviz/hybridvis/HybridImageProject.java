@@ -0,0 +1,173 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import fr.aviz.hybridvis.display.DisplayConfiguration;
+import fr.aviz.hybridvis.utils.DisplayConfigurationReader;
+import fr.aviz.hybridvis.utils.ProgressMonitor;
+
+/**
+ * A hybrid image blending two images, as edited with HybridImageGenerator, which can be rendered
+ * without Swing (e.g., in headless mode, see HybridImageBatch).
+ * 
+ * The near image is shown with scale 1:1 at the center of the simulated display, and the far image is
+ * scaled to occupy the same space. Images are only read while rendering, so that tiles of a project can
+ * be rendered concurrently, and so can several projects.
+ */
+public class HybridImageProject implements WallImageSource, HybridImagePipeline.Content {
+
+  protected final HybridImageRendererSettings settings;
+  protected final DisplayConfiguration display;
+  protected final BufferedImage nearImage;
+  protected final BufferedImage farImage;
+  protected final Rectangle imageBounds;
+  protected final HybridImagePipeline pipeline;
+
+  public HybridImageProject(HybridImageRendererSettings settings, DisplayConfiguration display, BufferedImage nearImage, BufferedImage farImage){
+    this.settings = settings;
+    this.display = display;
+    this.nearImage = nearImage;
+    this.farImage = farImage;
+    this.imageBounds = getImageBounds(display, nearImage);
+    this.pipeline = new HybridImagePipeline(this);
+  }
+
+  /**
+   * Loads a project saved by HybridImageGenerator, along with its images.
+   * @param displayFile - display configuration, or null to use the one of the project.
+   */
+  public static HybridImageProject load(File projectFile, File displayFile) throws IOException{
+    final HybridImageRendererSettings settings = HybridImageRendererSettings.fromFile(projectFile);
+    if(displayFile == null){
+      displayFile = new File(settings.displayPath);
+    }
+    final DisplayConfiguration display = DisplayConfigurationReader.fromFile(displayFile);
+    return new HybridImageProject(settings, display, readImage(settings.nearImagePath), readImage(settings.farImagePath));
+  }
+
+  private static BufferedImage readImage(String path) throws IOException{
+    final File file = new File(path);
+    if(!file.isFile()){
+      throw new FileNotFoundException(path);
+    }
+    final BufferedImage img = ImageIO.read(file);
+    if(img == null){
+      throw new IOException("Unsupported image format: " + path);
+    }
+    return img;
+  }
+
+  /**
+   * Returns the bounds of the images on the simulated display: the near image is shown with scale 1:1
+   * and is centered.
+   */
+  public static Rectangle getImageBounds(DisplayConfiguration display, BufferedImage nearImage){
+    return new Rectangle(
+      (display.getXResolution() - nearImage.getWidth()) / 2,
+      (display.getYResolution() - nearImage.getHeight()) / 2,
+      nearImage.getWidth(),
+      nearImage.getHeight());
+  }
+
+  public HybridImageRendererSettings getSettings(){
+    return settings;
+  }
+
+  public HybridImagePipeline getPipeline(){
+    return pipeline;
+  }
+
+  @Override
+  public DisplayConfiguration getSimulatedDisplay(){
+    return display;
+  }
+
+  @Override
+  public void renderHybridImage(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm, List<BufferedImage> spectrumSamples){
+    pipeline.render(tmpNear, tmpFar, tmpFinal, dst, bounds, pm, spectrumSamples, settings, display.getXResolution(), 0, null, null);
+  }
+
+  @Override
+  public int getFilterMargin(double scale){
+    return HybridImagePipeline.getFilterMargin(settings, scale);
+  }
+
+  /**
+   * Projects have no overlays.
+   */
+  @Override
+  public void drawOverlays(BufferedImage img, int x, int y){
+  }
+
+  @Override
+  public void drawBackground(Graphics2D g, Rectangle2D bounds){
+    final AffineTransform at0 = g.getTransform();
+    final Shape oldClip = g.getClip();
+    transform(g, bounds);
+    g.setColor(Color.white);
+    g.fillRect(0, 0, display.getXResolution(), display.getYResolution());
+    g.setTransform(at0);
+    g.setClip(oldClip);
+  }
+
+  @Override
+  public void drawNear(Graphics2D g, Rectangle2D bounds){
+    drawImage(g, bounds, nearImage);
+  }
+
+  @Override
+  public void drawFar(Graphics2D g, Rectangle2D bounds){
+    drawImage(g, bounds, farImage);
+  }
+
+  private void drawImage(Graphics2D g, Rectangle2D bounds, BufferedImage img){
+    final AffineTransform at0 = g.getTransform();
+    final Shape oldClip = g.getClip();
+    transform(g, bounds);
+    g.drawImage(img, imageBounds.x, imageBounds.y, imageBounds.width, imageBounds.height, null);
+    g.setTransform(at0);
+    g.setClip(oldClip);
+  }
+
+  /**
+   * Maps the wall-sized display to <pre>bounds</pre>.
+   */
+  private void transform(Graphics2D g, Rectangle2D bounds){
+    g.clip(bounds);
+    g.translate(bounds.getX(), bounds.getY());
+    g.scale(bounds.getWidth() / display.getXResolution(), bounds.getHeight() / display.getYResolution());
+  }
+}
@@ -20,10 +20,10 @@
 
 package fr.aviz.hybridvis;
 
-import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
+import java.awt.GraphicsEnvironment;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
@@ -41,18 +41,13 @@ import java.util.List;
 
 import javax.swing.JFrame;
 
-import com.jhlabs.image.ContrastFilter;
-import com.jhlabs.image.GaussianFilter;
-import com.jhlabs.image.HighPassFilter;
-
+import fr.aviz.hybridvis.HybridImageRendererSettings.BlurEngine;
 import fr.aviz.hybridvis.display.DisplayConfiguration;
 import fr.aviz.hybridvis.display.WILDERDisplay;
 import fr.aviz.hybridvis.models.FrequenciesAndAngles;
 import fr.aviz.hybridvis.utils.DisplayConfigurationReader;
 import fr.aviz.hybridvis.utils.GUIUtils;
-import fr.aviz.hybridvis.utils.ImageStatistics;
 import fr.aviz.hybridvis.utils.ProgressMonitor;
-import fr.aviz.hybridvis.utils.TransparentHighPassFilter;
 import fr.aviz.hybridvis.utils.settings.Settings.SettingsListener;
 
 /**
@@ -81,9 +76,40 @@ public abstract class HybridImageRenderer extends WallRenderer {
 	HybridImageRendererSettings settings = null;
   JFrame settingsFrame = null;
   PowerSpectrumAnalyzer powerSpectrumAnalyzer = null;
+
+  // Filtered layers of the last preview
+  private final CachedLayer nearLayer = new CachedLayer();
+  private final CachedLayer farLayer = new CachedLayer();
 	
 	Font waitFont = new Font("Helvetica", 0, 12);
 
+	/**
+	 * Serializes calls to the drawing methods implemented by subclasses, which are not required
+	 * to be thread-safe, when tiles or layers are rendered concurrently (see TiledRenderer and
+	 * isDrawingThreadSafe()).
+	 */
+	protected final Object drawLock = new Object();
+
+  /**
+   * Draws the layers with the methods below and filters them.
+   */
+  private final HybridImagePipeline pipeline = new HybridImagePipeline(new HybridImagePipeline.Content(){
+    public void drawBackground(Graphics2D g, Rectangle2D bounds){
+      drawBackgroundGraphics(g, bounds);
+    }
+    public void drawNear(Graphics2D g, Rectangle2D bounds){
+      drawNearGraphics(g, bounds);
+    }
+    public void drawFar(Graphics2D g, Rectangle2D bounds){
+      drawFarGraphics(g, bounds);
+    }
+  }){
+    @Override
+    protected BufferedImageOp createBlurFilter(BlurEngine blurEngine, float radius){
+      return HybridImageRenderer.this.createBlurFilter(blurEngine, radius);
+    }
+  };
+
   private static DisplayConfiguration defaultConfiguration = new WILDERDisplay(); 
 
   public static String SETTINGS_PROPERTY = "settings";
@@ -119,6 +145,10 @@ public abstract class HybridImageRenderer extends WallRenderer {
 	}
 
   protected void setupSettingsControls(){
+    // No control panel when rendering headless
+    if(GraphicsEnvironment.isHeadless()){
+      return;
+    }
     if(settingsFrame != null){
       settingsFrame.setVisible(false);
       settingsFrame.dispose();
@@ -126,6 +156,21 @@ public abstract class HybridImageRenderer extends WallRenderer {
     settingsFrame = settings.makeControlFrame();
   }
 
+  /**
+   * Returns the project settings of this renderer.
+   */
+  public HybridImageRendererSettings getSettings(){
+    return settings;
+  }
+
+  /**
+   * Returns the rendering core of this renderer, which draws with the methods of this renderer
+   * (see ParameterSweep).
+   */
+  public HybridImagePipeline getPipeline(){
+    return pipeline;
+  }
+
   /**
    * Sets the project settings for this renderer.
    */
@@ -139,19 +184,24 @@ public abstract class HybridImageRenderer extends WallRenderer {
   		settings.addListener(new SettingsListener() {
 			@Override
 			public void settingsChangedFromControlPanel() {
-				invalidateWallImage(false);
+				invalidateSettings();
 				drawTiles = settings.drawBezels;
 				repaint();
 			}
 			@Override
 			public void settingsChangedFromCode() {
-				invalidateWallImage(false);
+				invalidateSettings();
 				drawTiles = settings.drawBezels;
 				repaint();
 			}
 		});
   }
 
+  @Override
+  protected Object snapshotSettings() {
+    return settings.copy();
+  }
+
 	/////// Abstract methods to implement
 
 	// non abstract for backward-compatibility
@@ -184,6 +234,20 @@ public abstract class HybridImageRenderer extends WallRenderer {
 	 */
 	public abstract void drawFarGraphics(Graphics2D g);
 
+	/**
+	 * Returns whether drawBackgroundGraphics(), drawNearGraphics() and drawFarGraphics() may be called
+	 * concurrently from several threads, each with its own Graphics2D.
+	 * 
+	 * The near and far layers are drawn and filtered in parallel, and so are the tiles of exported images.
+	 * By default, the drawing methods are not assumed to be thread-safe and calls to them are serialized
+	 * (see drawLock), so that only filtering overlaps. Subclasses whose drawing methods do not modify
+	 * shared state, and whose data is not modified while rendering (or is synchronized), can return true
+	 * so that drawing overlaps as well.
+	 */
+	protected boolean isDrawingThreadSafe() {
+		return false;
+	}
+
 	///////// Hybrid image rendering parameters
 
 	public void setDrawBackground(boolean draw) {
@@ -302,6 +366,22 @@ public abstract class HybridImageRenderer extends WallRenderer {
 		settings.fireSettingsChangedFromCode();
 	}
 
+	/**
+	 * Returns the implementation of the low-pass function applied to the far image.
+	 * The default is BlurEngine.CONVOLUTION.
+	 */
+	public BlurEngine getBlurEngine() {
+		return settings.blurEngine;
+	}
+
+	/**
+	 * Sets the implementation of the low-pass function applied to the far image.
+	 */
+	public void setBlurEngine(BlurEngine blurEngine) {
+		settings.blurEngine = blurEngine;
+		settings.fireSettingsChangedFromCode();
+	}
+
 	/**
 	 * Returns the opacity with which the far image is drawn on top of the near image, between 0 and 1.
 	 * The default value is 0.5. 
@@ -383,9 +463,11 @@ public abstract class HybridImageRenderer extends WallRenderer {
 	 */
 	@Override
 	public void drawPreview(Graphics2D g) {
-		if (windowBuffer == null)
+		final WindowImage windowImage = this.windowImage;
+		if (windowImage == null)
 			return;
-		g.drawImage(windowBuffer, (int)windowBoundsOnWall.getMinX(), (int)windowBoundsOnWall.getMinY(), (int)windowBoundsOnWall.getWidth(), (int)windowBoundsOnWall.getHeight(), null);
+		final Rectangle2D.Double windowBoundsOnWall = windowImage.getBoundsOnWall();
+		g.drawImage(windowImage.getImage(), (int)windowBoundsOnWall.getMinX(), (int)windowBoundsOnWall.getMinY(), (int)windowBoundsOnWall.getWidth(), (int)windowBoundsOnWall.getHeight(), null);
 		// switch back to component coordinates
 		g.setTransform(AffineTransform.getTranslateInstance(getX(), getY()));
 		g.setFont(waitFont);
@@ -412,102 +494,66 @@ public abstract class HybridImageRenderer extends WallRenderer {
    * @param pm - progress manager
    */
   @Override
-  protected void renderHybridImage(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm, List<float[]> frequencyDists){
-    final Graphics2D gNear = (Graphics2D)tmpNear.getGraphics();
-    final Graphics2D gFar = (Graphics2D)tmpFar.getGraphics();
-    final Graphics2D gFinal = (Graphics2D)tmpFinal.getGraphics();
-    setDefaultRenderingHints(gNear);
-    setDefaultRenderingHints(gFar);
-    setDefaultRenderingHints(gFinal);
-    setDefaultRenderingHints(dst);
-    final double scale = bounds.getWidth() / getWallWidth();
-
-    pm.setProgress(100);
-    if(settings.drawNearImage){
-      pm.setNote("Rendering near image");
-      drawNearGraphics(gNear, bounds);
-      if(settings.drawPowerSpectrum){
-			  frequencyDists.add(ImageStatistics.get1dFrequencies(tmpNear));
-      }
-      if(settings.hipassRadius > 0){ 
-        final HighPassFilter hipass = settings.transparentHipass ? new TransparentHighPassFilter() : new HighPassFilter();
-			  hipass.setRadius((float)(getHipassRadius() * scale));
-			  hipass.filter(tmpNear, tmpNear);
-      }
-      if(pm.isCanceled()){
-        return;
-      }
-    	final ContrastFilter contrast = new ContrastFilter();
-			contrast.setContrast((float)getHipassContrast());
-			contrast.setBrightness((float)getHipassBrightness());
-			contrast.filter(tmpNear, tmpNear);
-      if(settings.drawPowerSpectrum){
-			  frequencyDists.add(ImageStatistics.get1dFrequencies(tmpNear));
-      }
-    }
-
-    if(pm.isCanceled()){
-      return;
-    }
-    pm.setProgress(200);
-
-    if(settings.drawFarImage){
-      pm.setNote("Rendering far image");
-			drawFarGraphics(gFar, bounds);
-      if(settings.drawPowerSpectrum){
-        frequencyDists.add(ImageStatistics.get1dFrequencies(tmpFar));
-      }
-      if(pm.isCanceled()){
-        return;
-      }
-      if(getBlurRadius() > 0){
-     	  BufferedImageOp blur = new GaussianFilter((float)(getBlurRadius() * scale));
-			  blur.filter(tmpFar, tmpFar);
-      }
-      if(settings.drawPowerSpectrum){
-			  frequencyDists.add(ImageStatistics.get1dFrequencies(tmpFar));
-      }
-    }
-
-    if(pm.isCanceled()){
-      return;
-    }
-    pm.setProgress(400);
+  public void renderHybridImage(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm, List<BufferedImage> spectrumSamples){
+    renderHybridImage(tmpNear, tmpFar, tmpFinal, dst, bounds, pm, spectrumSamples, settings, getWallWidth(), contentVersion.get(), null, null);
+  }
 
-    if(settings.drawBackground){
-			drawBackgroundGraphics(gFinal, bounds);
-    }
+  /**
+   * Renders the preview with the settings of the job, reusing the near and far layers of the previous
+   * preview when neither the view nor the settings they depend on have changed.
+   */
+  @Override
+  protected void renderWindowImage(RenderJob job, BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm,
+      List<BufferedImage> spectrumSamples, boolean wholeWindow){
+    renderHybridImage(tmpNear, tmpFar, tmpFinal, dst, bounds, pm, spectrumSamples, (HybridImageRendererSettings)job.getSettings(),
+        job.getDisplayWidth(), job.getContentVersion(), wholeWindow ? nearLayer : null, wholeWindow ? farLayer : null);
+  }
 
-    pm.setNote("Compositing images");
-    if(settings.drawNearImage){
-    	gFinal.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (float)settings.nearImageOpacity));
-  		gFinal.drawImage(tmpNear, 0, 0, null);
-    }
+  /**
+   * Renders a hybrid image, using cached layers if they are not null (see HybridImagePipeline.render()).
+   * @param settings - settings to render with.
+   * @param wallWidth - horizontal resolution of the simulated display.
+   * @param version - content version, identifying cached layers along with the view and the settings.
+   */
+  protected void renderHybridImage(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm,
+      List<BufferedImage> spectrumSamples, HybridImageRendererSettings settings, int wallWidth, int version, CachedLayer nearCache, CachedLayer farCache){
+    pipeline.render(tmpNear, tmpFar, tmpFinal, dst, bounds, pm, spectrumSamples, settings, wallWidth, version, nearCache, farCache);
+  }
 
-    if(settings.drawFarImage){
-			gFinal.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (float)settings.farImageOpacity));
-			gFinal.drawImage(tmpFar, 0, 0, null);
-    }
+  @Override
+  public int getFilterMargin(double scale){
+    return HybridImagePipeline.getFilterMargin(settings, scale);
+  }
 
-  	final ContrastFilter contrast2 = new ContrastFilter();
-		contrast2.setContrast((float)getPostContrast());
-		contrast2.setBrightness((float)getPostBrightness());
-		contrast2.filter(tmpFinal, tmpFinal);
+  @Override
+  protected int getFilterMargin(RenderJob job, double scale){
+    return HybridImagePipeline.getFilterMargin((HybridImageRendererSettings)job.getSettings(), scale);
+  }
 
-    if(settings.drawPowerSpectrum){
-			frequencyDists.add(ImageStatistics.get1dFrequencies(tmpFinal));
-    }
+  /**
+   * Returns the far image blur for the current blur engine.
+   */
+  protected BufferedImageOp createBlurFilter(float radius){
+    return createBlurFilter(settings.blurEngine, radius);
+  }
 
-    if(pm.isCanceled()){
-      return;
-    }
-    pm.setProgress(800);
+  /**
+   * Returns the far image blur for the given blur engine.
+   */
+  protected BufferedImageOp createBlurFilter(BlurEngine blurEngine, float radius){
+    return HybridImagePipeline.newBlurFilter(blurEngine, radius);
+  }
 
+  @Override
+  protected void drawOverlays(Graphics2D g){
     if(settings.drawSettings){
-      drawSettings(gFinal);
+      drawSettings(g);
     }
+  }
 
-    dst.drawImage(tmpFinal, 0, 0, null);
+  @Override
+  protected void addPerformanceInfo(List<String> lines){
+    lines.add("Layer cache hits: near " + formatRate(nearLayer.getHitRate()) + ", far " + formatRate(farLayer.getHitRate()));
   }
 
   protected void drawSettings(Graphics2D g){
@@ -592,7 +638,13 @@ public abstract class HybridImageRenderer extends WallRenderer {
 		g.clip(bounds);
 		g.translate(bounds.getX(), bounds.getY());
 		g.scale(bounds.getWidth() / getWallWidth(), bounds.getHeight() / getWallHeight());
-		drawBackgroundGraphics(g);		
+		if (isDrawingThreadSafe()) {
+			drawBackgroundGraphics(g);
+		} else {
+			synchronized(drawLock){
+				drawBackgroundGraphics(g);
+			}
+		}
 		g.setTransform(at0);
 		g.setClip(oldClip);
 	}
@@ -614,7 +666,13 @@ public abstract class HybridImageRenderer extends WallRenderer {
 		g.clip(bounds);
 		g.translate(bounds.getX(), bounds.getY());
 		g.scale(bounds.getWidth() / getWallWidth(), bounds.getHeight() / getWallHeight());
-		drawNearGraphics(g);		
+		if (isDrawingThreadSafe()) {
+			drawNearGraphics(g);
+		} else {
+			synchronized(drawLock){
+				drawNearGraphics(g);
+			}
+		}
 		g.setTransform(at0);
 		g.setClip(oldClip);
 	}
@@ -634,7 +692,13 @@ public abstract class HybridImageRenderer extends WallRenderer {
 		g.clip(bounds);
 		g.translate(bounds.getX(), bounds.getY());
 		g.scale(bounds.getWidth() / getWallWidth(), bounds.getHeight() / getWallHeight());
-		drawFarGraphics(g);
+		if (isDrawingThreadSafe()) {
+			drawFarGraphics(g);
+		} else {
+			synchronized(drawLock){
+				drawFarGraphics(g);
+			}
+		}
 		g.setTransform(at0);
 		g.setClip(oldClip);
 	}
@@ -647,13 +711,13 @@ public abstract class HybridImageRenderer extends WallRenderer {
 		if(e.getActionCommand().equals("togglePowerSpectrum")){
 			settings.drawPowerSpectrum = !settings.drawPowerSpectrum;
 			settings.fireSettingsChangedFromCode();
-			invalidateWallImage(false);
+			invalidateSettings();
 			repaint();
 		}
 		else if(e.getActionCommand().equals("renderValueSettings")) {
 			settings.drawSettings = !settings.drawSettings;
 			settings.fireSettingsChangedFromCode();
-			invalidateWallImage(false);
+			invalidateSettings();
 			repaint();
 		}
 		else if(e.getActionCommand().equals("blurRadius")) currentSetting = "blurRadius";
@@ -678,7 +742,7 @@ public abstract class HybridImageRenderer extends WallRenderer {
 				setPostContrast(Math.max(0, getPostContrast() + upOrDown * 0.01));
 				System.out.println("postContrast=" + getPostContrast());
 			}
-			invalidateWallImage(false);
+			invalidateSettings();
 			repaint();
 		}  
   }
@@ -38,6 +38,16 @@ import fr.aviz.hybridvis.utils.settings.Settings;
  */
 public class HybridImageRendererSettings extends Settings {
 
+  /**
+   * Implementations of the far image blur.
+   */
+  public enum BlurEngine {
+    /** Convolution with a Gaussian kernel, computed by FFT for large radii (see GaussianFilter.getFFTRadius()). */
+    CONVOLUTION,
+    /** Recursive approximation of the Gaussian (see RecursiveGaussianFilter); constant cost per pixel. */
+    RECURSIVE
+  }
+
   @Configurable
   boolean drawBackground = true;
 
@@ -67,6 +77,9 @@ public class HybridImageRendererSettings extends Settings {
   @Configurable(min=0, max=100, majorTick=20, pow=1.5)
   int blurRadius = 30;   // in pixels. Set to 0 to deactivate.
 
+  @Configurable(help="Recursive is much faster for large radii, and within a few levels of convolution")
+  BlurEngine blurEngine = BlurEngine.CONVOLUTION;
+
   @Configurable(min=0, max=1, majorTick=0.5, minorTick=0.25)
   double farImageOpacity = 0.5;
 
@@ -114,6 +127,38 @@ public class HybridImageRendererSettings extends Settings {
     super("Hybrid renderer settings");
   }
 
+  /**
+   * Returns a copy of these settings, without their listeners and control panel.
+   */
+  public HybridImageRendererSettings copy(){
+    // New settings added to HybridImageRendererSettings should be reflected in this method.
+    HybridImageRendererSettings retval = new HybridImageRendererSettings();
+    retval.drawBackground = drawBackground;
+    retval.drawNearImage = drawNearImage;
+    retval.hipassRadius = hipassRadius;
+    retval.transparentHipass = transparentHipass;
+    retval.hipassContrast = hipassContrast;
+    retval.hipassBrightness = hipassBrightness;
+    retval.nearImageOpacity = nearImageOpacity;
+    retval.drawFarImage = drawFarImage;
+    retval.blurRadius = blurRadius;
+    retval.blurEngine = blurEngine;
+    retval.farImageOpacity = farImageOpacity;
+    retval.postContrast = postContrast;
+    retval.postBrightness = postBrightness;
+    retval.drawBezels = drawBezels;
+    retval.drawSettings = drawSettings;
+    retval.drawPowerSpectrum = drawPowerSpectrum;
+    retval.logScalePowerSpectrumY = logScalePowerSpectrumY;
+    retval.highlightFrequencyBand = highlightFrequencyBand;
+    retval.frequencyBandMidpoint = frequencyBandMidpoint;
+    retval.frequencyBandWidth = frequencyBandWidth;
+    retval.displayPath = displayPath;
+    retval.nearImagePath = nearImagePath;
+    retval.farImagePath = farImagePath;
+    return retval;
+  }
+
   /**
    * Relativizes <pre>path</pre> w.r.t. the parent directory of <pre>projectPath</pre>.
    * @param projectPath - Absolute path of the project (including file name).
@@ -159,6 +204,7 @@ public class HybridImageRendererSettings extends Settings {
     props.setProperty("nearImageOpacity", ts(nearImageOpacity));
     props.setProperty("drawFarImage", ts(drawFarImage));
     props.setProperty("blurRadius", ts(blurRadius));
+    props.setProperty("blurEngine", blurEngine.name());
     props.setProperty("farImageOpacity", ts(farImageOpacity));
     props.setProperty("postContrast", ts(postContrast));
     props.setProperty("postBrightness", ts(postBrightness));
@@ -200,7 +246,9 @@ public class HybridImageRendererSettings extends Settings {
       fis = new FileInputStream(path);
       props.load(fis);
     } finally{
-      fis.close();
+      if(fis != null){
+        fis.close();
+      }
     }
     final Path loadPath = path.toPath();
     retval.displayPath = resolve(loadPath, new File(props.getProperty("displayPath")).toPath());
@@ -216,6 +264,8 @@ public class HybridImageRendererSettings extends Settings {
     retval.nearImageOpacity = Double.parseDouble(props.getProperty("nearImageOpacity"));
     retval.drawFarImage = Boolean.parseBoolean(props.getProperty("drawFarImage"));
     retval.blurRadius = Integer.parseInt(props.getProperty("blurRadius"));
+    // Absent from projects saved by earlier versions
+    retval.blurEngine = BlurEngine.valueOf(props.getProperty("blurEngine", BlurEngine.CONVOLUTION.name()));
     retval.farImageOpacity = Double.parseDouble(props.getProperty("farImageOpacity"));
     retval.postContrast = Double.parseDouble(props.getProperty("postContrast"));
     retval.postBrightness = Double.parseDouble(props.getProperty("postBrightness"));
@@ -0,0 +1,520 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.aviz.hybridvis.display.DisplayConfiguration;
+import fr.aviz.hybridvis.filters.BufferPool;
+import fr.aviz.hybridvis.filters.CancellationToken;
+import fr.aviz.hybridvis.utils.PNGStreamWriter;
+import fr.aviz.hybridvis.utils.ProgressMonitor;
+import fr.aviz.hybridvis.utils.settings.Configurable;
+
+/**
+ * Renders a hybrid image for every combination of a grid of settings values, e.g. to tune the filters for
+ * a new dataset, and writes each image along with a contact sheet showing all of them.
+ * 
+ * Drawing the layers is often the most expensive step, and filtering comes next: the near and far layers
+ * are drawn only once, each layer is filtered once per distinct radius, and only compositing is done for
+ * every combination. Filtering and compositing run concurrently (see setParallelism()).
+ * 
+ * Swept parameters are the numeric settings of HybridImageRendererSettings, by field name (as in project
+ * files). To sweep the settings of a viewer:
+ * <pre>
+ *   ParameterSweep sweep = new ParameterSweep(renderer.getPipeline(), renderer.getSimulatedDisplay(), renderer.getSettings());
+ *   sweep.addParameter("hipassRadius", 10, 20, 30);
+ *   sweep.addParameter("farImageOpacity", 0.4, 0.6);
+ *   sweep.render(folder, "treemap", pm);
+ * </pre>
+ */
+public class ParameterSweep {
+
+  public static final int DEFAULT_THUMBNAIL_WIDTH = 320;
+  /** Interval (in milliseconds) at which the progress monitor is checked for cancellation while filtering */
+  private static final long CANCEL_CHECK_INTERVAL = 50;
+
+  protected final HybridImagePipeline pipeline;
+  protected final DisplayConfiguration display;
+  protected final HybridImageRendererSettings baseSettings;
+  /** Values of each swept parameter, in the order parameters were added */
+  protected final Map<Field, double[]> parameters = new LinkedHashMap<Field, double[]>();
+  protected Rectangle region = null;
+  protected double scale = 1;
+  protected int thumbnailWidth = DEFAULT_THUMBNAIL_WIDTH;
+  protected int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * @param baseSettings - settings of the parameters that are not swept. They are copied when rendering,
+   * and must not change meanwhile.
+   */
+  public ParameterSweep(HybridImagePipeline pipeline, DisplayConfiguration display, HybridImageRendererSettings baseSettings){
+    this.pipeline = pipeline;
+    this.display = display;
+    this.baseSettings = baseSettings;
+  }
+
+  /**
+   * Returns the names of the parameters that can be swept.
+   */
+  public static List<String> getParameterNames(){
+    final List<String> names = new ArrayList<String>();
+    for(Field f : HybridImageRendererSettings.class.getDeclaredFields()){
+      if(isSweepable(f)){
+        names.add(f.getName());
+      }
+    }
+    return names;
+  }
+
+  private static boolean isSweepable(Field f){
+    return f.isAnnotationPresent(Configurable.class) && !Modifier.isStatic(f.getModifiers())
+      && (f.getType() == int.class || f.getType() == double.class);
+  }
+
+  /**
+   * Sweeps a parameter over the given values. Integer parameters (radii) are rounded.
+   * @param name - name of a field of HybridImageRendererSettings (see getParameterNames()).
+   */
+  public void addParameter(String name, double... values){
+    final Field field;
+    try{
+      field = HybridImageRendererSettings.class.getDeclaredField(name);
+    } catch(NoSuchFieldException e){
+      throw new IllegalArgumentException("Unknown parameter: " + name);
+    }
+    if(!isSweepable(field)){
+      throw new IllegalArgumentException("Parameter cannot be swept: " + name);
+    }
+    if(values.length == 0){
+      throw new IllegalArgumentException("No values for parameter " + name);
+    }
+    parameters.put(field, values.clone());
+  }
+
+  /**
+   * Sets the region of the wall to render, in wall coordinates, or null to render the whole wall (the default).
+   * Regions are rendered as if the whole wall was rendered and then cropped.
+   */
+  public void setRegion(Rectangle region){
+    this.region = region;
+  }
+
+  /**
+   * Sets the size of the rendered images relative to the wall. The default value is 1 (full resolution).
+   * Filter radii are scaled accordingly, as in the preview.
+   */
+  public void setScale(double scale){
+    if(scale <= 0){
+      throw new IllegalArgumentException("Invalid scale: " + scale);
+    }
+    this.scale = scale;
+  }
+
+  /**
+   * Sets the width of the images on the contact sheet.
+   */
+  public void setThumbnailWidth(int thumbnailWidth){
+    if(thumbnailWidth <= 0){
+      throw new IllegalArgumentException("Invalid thumbnail width: " + thumbnailWidth);
+    }
+    this.thumbnailWidth = thumbnailWidth;
+  }
+
+  /**
+   * Sets the number of layers filtered or images composited concurrently. The default is the number of
+   * available processors. Each of them needs an image the size of the rendered region.
+   */
+  public void setParallelism(int parallelism){
+    if(parallelism <= 0){
+      throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Returns the settings of every combination of parameter values, the last parameter varying fastest.
+   */
+  public List<HybridImageRendererSettings> getCombinations(){
+    final List<HybridImageRendererSettings> combinations = new ArrayList<HybridImageRendererSettings>();
+    combinations.add(baseSettings.copy());
+    for(Map.Entry<Field, double[]> p : parameters.entrySet()){
+      final List<HybridImageRendererSettings> next = new ArrayList<HybridImageRendererSettings>();
+      for(HybridImageRendererSettings s : combinations){
+        for(double v : p.getValue()){
+          final HybridImageRendererSettings c = s.copy();
+          set(c, p.getKey(), v);
+          next.add(c);
+        }
+      }
+      combinations.clear();
+      combinations.addAll(next);
+    }
+    return combinations;
+  }
+
+  private static void set(HybridImageRendererSettings settings, Field field, double value){
+    try{
+      if(field.getType() == int.class){
+        field.setInt(settings, (int)Math.round(value));
+      } else{
+        field.setDouble(settings, value);
+      }
+    } catch(IllegalAccessException e){
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static double get(HybridImageRendererSettings settings, Field field){
+    try{
+      return field.getDouble(settings);
+    } catch(IllegalAccessException e){
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the values of the swept parameters in the given settings, as "name=value" pairs.
+   */
+  public String getLabel(HybridImageRendererSettings settings, String separator){
+    final StringBuilder sb = new StringBuilder();
+    for(Field f : parameters.keySet()){
+      if(sb.length() > 0){
+        sb.append(separator);
+      }
+      final double v = get(settings, f);
+      sb.append(f.getName()).append('=').append(v == Math.rint(v) ? Long.toString((long)v) : Double.toString(v));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Renders all the combinations, writing them in <pre>folder</pre> as name_[label].png, and the contact
+   * sheet as name_sheet.png.
+   * @param pm - progress monitor, with a progress range of [0, 1000].
+   * @return the contact sheet file, or null if the rendering was canceled.
+   */
+  public File render(final File folder, final String name, final ProgressMonitor pm) throws IOException{
+    final List<HybridImageRendererSettings> combinations = getCombinations();
+
+    // The rendered region with margins for the largest filters, in image coordinates
+    final int wallWidth = (int)Math.round(display.getXResolution() * scale);
+    final int wallHeight = (int)Math.round(display.getYResolution() * scale);
+    final Rectangle wall = new Rectangle(0, 0, wallWidth, wallHeight);
+    final Rectangle out = region == null ? wall : new Rectangle((int)Math.floor(region.x * scale), (int)Math.floor(region.y * scale),
+        (int)Math.ceil(region.width * scale), (int)Math.ceil(region.height * scale)).intersection(wall);
+    if(out.isEmpty()){
+      throw new IllegalArgumentException("Empty region: " + region);
+    }
+    int margin = 0;
+    for(HybridImageRendererSettings s : combinations){
+      margin = Math.max(margin, HybridImagePipeline.getFilterMargin(s, scale));
+    }
+    final Rectangle rendered = new Rectangle(out.x - margin, out.y - margin, out.width + 2 * margin, out.height + 2 * margin).intersection(wall);
+    final Rectangle2D bounds = new Rectangle2D.Double(-rendered.x, -rendered.y, display.getXResolution() * scale, display.getYResolution() * scale);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory(){
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r){
+        final Thread t = new Thread(r, "ParameterSweep-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    final List<BufferedImage> layers = new ArrayList<BufferedImage>();
+    try{
+      // -- Draw each layer once
+      pm.setNote("Drawing layers");
+      pm.setProgress(0);
+      BufferedImage rawNear = null;
+      if(baseSettings.drawNearImage){
+        rawNear = BufferPool.getImage(rendered.width, rendered.height);
+        layers.add(rawNear);
+        pipeline.drawNearLayer(rawNear, bounds);
+      }
+      BufferedImage rawFar = null;
+      if(baseSettings.drawFarImage){
+        rawFar = BufferPool.getImage(rendered.width, rendered.height);
+        layers.add(rawFar);
+        pipeline.drawFarLayer(rawFar, bounds);
+      }
+      BufferedImage background = null;
+      if(baseSettings.drawBackground){
+        background = BufferPool.getImage(rendered.width, rendered.height);
+        layers.add(background);
+        final Graphics2D g = background.createGraphics();
+        HybridImagePipeline.setDefaultRenderingHints(g);
+        pipeline.getContent().drawBackground(g, bounds);
+        g.dispose();
+      }
+      if(pm.isCanceled()){
+        return null;
+      }
+      pm.setProgress(100);
+
+      // -- Filter each layer once per distinct radius
+      pm.setNote("Filtering layers");
+      // Canceled along with pm, so that the filters in progress stop between chunks of rows
+      final CancellationToken token = new CancellationToken();
+      final Map<Integer, Future<BufferedImage>> nearLayers = new HashMap<Integer, Future<BufferedImage>>();
+      final Map<Integer, Future<BufferedImage>> farLayers = new HashMap<Integer, Future<BufferedImage>>();
+      for(final HybridImageRendererSettings s : combinations){
+        if(rawNear != null && !nearLayers.containsKey(s.hipassRadius)){
+          nearLayers.put(s.hipassRadius, executor.submit(filterTask(rawNear, s, true, layers, pm, token)));
+        }
+        if(rawFar != null && !farLayers.containsKey(s.blurRadius)){
+          farLayers.put(s.blurRadius, executor.submit(filterTask(rawFar, s, false, layers, pm, token)));
+        }
+      }
+      final List<Future<BufferedImage>> filters = new ArrayList<Future<BufferedImage>>(nearLayers.values());
+      filters.addAll(farLayers.values());
+      for(Future<BufferedImage> f : filters){
+        if(await(f, pm, token) == null){
+          for(Future<BufferedImage> pending : filters){
+            pending.cancel(false);
+          }
+          return null;
+        }
+      }
+      if(pm.isCanceled()){
+        return null;
+      }
+      pm.setProgress(300);
+
+      // -- Composite every combination
+      pm.setNote("Compositing images");
+      final int columns = (int)Math.ceil(Math.sqrt(combinations.size()));
+      final int rows = (combinations.size() + columns - 1) / columns;
+      final int thumbHeight = Math.max(1, (int)Math.round((double)thumbnailWidth * out.height / out.width));
+      final Font font = new Font("SansSerif", Font.PLAIN, 11);
+      // Two lines of text below each thumbnail
+      final int labelHeight = 3 * font.getSize();
+      final BufferedImage sheet = new BufferedImage(columns * thumbnailWidth, rows * (thumbHeight + labelHeight), BufferedImage.TYPE_INT_ARGB);
+      final Graphics2D gSheet = sheet.createGraphics();
+      gSheet.setColor(Color.white);
+      gSheet.fillRect(0, 0, sheet.getWidth(), sheet.getHeight());
+      gSheet.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      gSheet.setFont(font);
+      final FontMetrics fm = gSheet.getFontMetrics();
+
+      final BufferedImage bg = background;
+      final AtomicInteger done = new AtomicInteger();
+      final List<Future<BufferedImage>> composites = new ArrayList<Future<BufferedImage>>();
+      for(int i = 0; i < combinations.size(); i++){
+        final HybridImageRendererSettings s = combinations.get(i);
+        final Future<BufferedImage> near = nearLayers.get(s.hipassRadius);
+        final Future<BufferedImage> far = farLayers.get(s.blurRadius);
+        composites.add(executor.submit(new Callable<BufferedImage>(){
+          public BufferedImage call() throws Exception{
+            if(pm.isCanceled()){
+              return null;
+            }
+            final BufferedImage dst = BufferPool.getImage(rendered.width, rendered.height);
+            try{
+              if(bg != null){
+                final Graphics2D g = dst.createGraphics();
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(bg, 0, 0, null);
+                g.dispose();
+              }
+              HybridImagePipeline.createCompositor(s).composite(near == null ? null : near.get(), far == null ? null : far.get(), dst);
+              final BufferedImage image = dst.getSubimage(out.x - rendered.x, out.y - rendered.y, out.width, out.height);
+              PNGStreamWriter.write(image, new File(folder, getFileName(name, s)));
+              final BufferedImage thumbnail = new BufferedImage(thumbnailWidth, thumbHeight, BufferedImage.TYPE_INT_ARGB);
+              final Graphics2D g = thumbnail.createGraphics();
+              g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+              g.drawImage(image, 0, 0, thumbnailWidth, thumbHeight, null);
+              g.dispose();
+              pm.setProgress(300 + 700 * done.incrementAndGet() / combinations.size());
+              return thumbnail;
+            } finally{
+              BufferPool.release(dst);
+            }
+          }
+        }));
+      }
+      for(int i = 0; i < composites.size(); i++){
+        final BufferedImage thumbnail = await(composites.get(i));
+        if(thumbnail == null){
+          return null;
+        }
+        final int x = (i % columns) * thumbnailWidth;
+        final int y = (i / columns) * (thumbHeight + labelHeight);
+        gSheet.drawImage(thumbnail, x, y, null);
+        gSheet.setColor(Color.black);
+        // The label is split on two lines, as it may be wider than the thumbnail
+        final String[] label = getLabel(combinations.get(i), " ").split(" ");
+        final int half = (label.length + 1) / 2;
+        gSheet.drawString(join(label, 0, half), x + 3, y + thumbHeight + fm.getAscent() + 2);
+        gSheet.drawString(join(label, half, label.length), x + 3, y + thumbHeight + fm.getAscent() + fm.getHeight() + 2);
+      }
+      gSheet.dispose();
+      final File sheetFile = new File(folder, name + "_sheet.png");
+      PNGStreamWriter.write(sheet, sheetFile);
+      pm.setProgress(1000);
+      return sheetFile;
+    } finally{
+      executor.shutdownNow();
+      // Filtering tasks may still be running if the sweep failed
+      try{
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch(InterruptedException e){
+        Thread.currentThread().interrupt();
+      }
+      synchronized(layers){
+        for(BufferedImage img : layers){
+          BufferPool.release(img);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a task filtering a copy of a drawn layer (or the layer itself if it is not filtered).
+   * The task returns null if the sweep was canceled before or while filtering.
+   */
+  private Callable<BufferedImage> filterTask(final BufferedImage raw, final HybridImageRendererSettings settings, final boolean near, final List<BufferedImage> layers,
+      final ProgressMonitor pm, final CancellationToken token){
+    return new Callable<BufferedImage>(){
+      public BufferedImage call(){
+        if(pm.isCanceled()){
+          return null;
+        }
+        if((near ? settings.hipassRadius : settings.blurRadius) <= 0){
+          return raw;
+        }
+        final BufferedImage layer = BufferPool.getImage(raw.getWidth(), raw.getHeight());
+        synchronized(layers){
+          layers.add(layer);
+        }
+        raw.copyData(layer.getRaster());
+        final CancellationToken previous = CancellationToken.setCurrent(token);
+        try{
+          if(near){
+            pipeline.filterNearLayer(layer, settings, scale);
+          } else{
+            pipeline.filterFarLayer(layer, settings, scale);
+          }
+        } catch(CancellationException e){
+          return null;
+        } finally{
+          CancellationToken.setCurrent(previous);
+        }
+        return layer;
+      }
+    };
+  }
+
+  /**
+   * Returns the name of the image file of a combination.
+   */
+  protected String getFileName(String name, HybridImageRendererSettings settings){
+    final String label = getLabel(settings, "_").replace('=', '-');
+    return label.length() == 0 ? name + ".png" : name + "_" + label + ".png";
+  }
+
+  private static String join(String[] words, int from, int to){
+    final StringBuilder sb = new StringBuilder();
+    for(int i = from; i < to; i++){
+      if(sb.length() > 0){
+        sb.append(' ');
+      }
+      sb.append(words[i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Waits for a filtering task while checking <pre>pm</pre>, and cancels <pre>token</pre> if the sweep is canceled.
+   * @return the result of the task, or null if the sweep was canceled.
+   */
+  private static <T> T await(Future<T> task, ProgressMonitor pm, CancellationToken token) throws IOException{
+    while(!pm.isCanceled()){
+      try{
+        task.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        break;
+      } catch(TimeoutException e){
+        // Check pm again
+      } catch(InterruptedException e){
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted", e);
+      } catch(ExecutionException e){
+        // Rethrown below
+        break;
+      }
+    }
+    if(pm.isCanceled()){
+      token.cancel();
+      return null;
+    }
+    return await(task);
+  }
+
+  /**
+   * Waits for a task, and rethrows its exceptions.
+   */
+  private static <T> T await(Future<T> task) throws IOException{
+    try{
+      return task.get();
+    } catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    } catch(ExecutionException e){
+      final Throwable t = e.getCause();
+      if(t instanceof IOException){
+        throw (IOException)t;
+      } else if(t instanceof RuntimeException){
+        throw (RuntimeException)t;
+      } else if(t instanceof Error){
+        throw (Error)t;
+      }
+      throw new RuntimeException(t);
+    }
+  }
+}
@@ -0,0 +1,448 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package fr.aviz.hybridvis;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import fr.aviz.hybridvis.filters.BufferPool;
+import fr.aviz.hybridvis.utils.PNGStreamWriter;
+import fr.aviz.hybridvis.utils.ProgressMonitor;
+import fr.aviz.hybridvis.utils.RenderEvents;
+
+/**
+ * Exports the full-resolution wall image of a WallImageSource as a multi-resolution pyramid of PNG tiles,
+ * which zoomable image viewers (e.g. OpenSeadragon, Leaflet) display without loading the whole image.
+ *
+ * Only the full-resolution level is rendered, by a TiledRenderer. Each tile of a lower level is the 2x
+ * downsampling of the (up to) four tiles below it, computed as soon as these tiles have been written.
+ * Downsamplings run concurrently, and only the tiles whose parent is not complete yet are held in
+ * memory, so that memory use depends on the wall width and not on its area.
+ */
+public class PyramidExporter {
+
+  /**
+   * Directory layouts of the pyramid.
+   */
+  public enum Layout {
+    /**
+     * Deep Zoom: a name.dzi descriptor and name_files/[level]/[column]_[row].png tiles. Level 0 is one
+     * pixel, and each level doubles the size of the previous one. Edge tiles are cropped to the image.
+     */
+    DEEP_ZOOM,
+    /**
+     * XYZ ("slippy map"): name/[z]/[x]/[y].png tiles. Zoom 0 fits the image in one tile, and each zoom
+     * level doubles its size. Edge tiles are padded with transparent pixels to the full tile size.
+     */
+    XYZ
+  }
+
+  public static final int DEFAULT_TILE_SIZE = 256;
+
+  protected final WallImageSource renderer;
+  protected final int tileSize;
+  protected final Layout layout;
+  protected int renderTileSize = TiledRenderer.DEFAULT_TILE_SIZE;
+  protected int parallelism = Runtime.getRuntime().availableProcessors();
+
+  // Export state
+  private int width;
+  private int height;
+  private int maxLevel;
+  private File tileFolder;
+  private ExecutorService executor;
+  private CountDownLatch remaining;
+  private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+  private volatile boolean canceled;
+  // Tiles written whose parent has not been computed yet, by level and position
+  private final ConcurrentMap<Long, BufferedImage> pendingTiles = new ConcurrentHashMap<Long, BufferedImage>();
+
+  /**
+   * @param tileSize - size of the square tiles of the pyramid, which must be even; typically 256 or 512.
+   */
+  public PyramidExporter(WallImageSource renderer, int tileSize, Layout layout){
+    if(tileSize <= 0 || tileSize % 2 != 0){
+      throw new IllegalArgumentException("Invalid tile size: " + tileSize);
+    }
+    this.renderer = renderer;
+    this.tileSize = tileSize;
+    this.layout = layout;
+  }
+
+  public int getTileSize(){
+    return tileSize;
+  }
+
+  public Layout getLayout(){
+    return layout;
+  }
+
+  /**
+   * Sets the approximate size of the regions rendered at once at full resolution, which is rounded to
+   * a multiple of the tile size (see TiledRenderer).
+   */
+  public void setRenderTileSize(int renderTileSize){
+    this.renderTileSize = renderTileSize;
+  }
+
+  /**
+   * Sets the number of regions rendered concurrently, and of tiles downsampled concurrently. The default
+   * is the number of available processors.
+   */
+  public void setParallelism(int parallelism){
+    if(parallelism <= 0){
+      throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Returns the index of the full-resolution level for an image of the given size.
+   */
+  public int getMaxLevel(int width, int height){
+    final int size = Math.max(width, height);
+    if(layout == Layout.DEEP_ZOOM){
+      return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+    final int tiles = (size + tileSize - 1) / tileSize;
+    return 32 - Integer.numberOfLeadingZeros(tiles - 1);
+  }
+
+  /**
+   * Renders the wall image and writes its pyramid into <pre>folder</pre>, as described by the layout.
+   * @param name - base name of the pyramid files.
+   * @param pm - progress monitor; progress is reported between its minimum and maximum.
+   * @return false if the export was canceled.
+   */
+  public synchronized boolean export(File folder, String name, ProgressMonitor pm) throws IOException{
+    final TiledRenderer tiledRenderer = new TiledRenderer(renderer, tileSize, tileSize);
+    tiledRenderer.setParallelism(parallelism);
+    width = tiledRenderer.getWallWidth();
+    height = tiledRenderer.getWallHeight();
+    maxLevel = getMaxLevel(width, height);
+    tileFolder = new File(folder, layout == Layout.DEEP_ZOOM ? name + "_files" : name);
+    error.set(null);
+    canceled = false;
+    pendingTiles.clear();
+    int tileCount = 0;
+    for(int level = 0; level <= maxLevel; ++level){
+      tileCount += getColumns(level) * getRows(level);
+    }
+    remaining = new CountDownLatch(tileCount);
+
+    // Regions rendered at once: blocks of tiles, in row order
+    final int block = Math.max(1, renderTileSize / tileSize) * tileSize;
+    final List<Rectangle> regions = new ArrayList<Rectangle>();
+    for(int y = 0; y < height; y += block){
+      for(int x = 0; x < width; x += block){
+        regions.add(new Rectangle(x, y, Math.min(block, width - x), Math.min(block, height - y)));
+      }
+    }
+
+    executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory(){
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r){
+        final Thread t = new Thread(r, "PyramidExporter-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    boolean completed = false;
+    try{
+      completed = tiledRenderer.renderTiles(regions, new TiledRenderer.TileListener(){
+        public void tileRendered(int index, Rectangle bounds, BufferedImage image) throws IOException{
+          // Cut the region into tiles of the full-resolution level
+          for(int y = 0; y < bounds.height; y += tileSize){
+            for(int x = 0; x < bounds.width; x += tileSize){
+              final int w = Math.min(tileSize, bounds.width - x);
+              final int h = Math.min(tileSize, bounds.height - y);
+              final BufferedImage tile = BufferPool.getImage(w, h);
+              tile.getRaster().setDataElements(0, 0, image.getRaster().createChild(x, y, w, h, 0, 0, null));
+              tileCompleted(maxLevel, (bounds.x + x) / tileSize, (bounds.y + y) / tileSize, tile);
+            }
+          }
+          // Stop rendering if a tile could not be written
+          if(error.get() != null){
+            throw new IOException("Could not export the tile pyramid", error.get());
+          }
+        }
+      }, pm);
+      if(completed){
+        // Wait for the downsampled levels
+        boolean interrupted = false;
+        while(true){
+          try{
+            remaining.await();
+            break;
+          } catch(InterruptedException e){
+            interrupted = true;
+            canceled = true;
+          }
+        }
+        if(interrupted){
+          Thread.currentThread().interrupt();
+        }
+      }
+      final Throwable t = error.get();
+      if(t instanceof IOException){
+        throw (IOException)t;
+      } else if(t instanceof RuntimeException){
+        throw (RuntimeException)t;
+      } else if(t instanceof Error){
+        throw (Error)t;
+      } else if(t != null){
+        throw new IOException(t);
+      }
+      completed = completed && !canceled && !pm.isCanceled();
+      if(completed && layout == Layout.DEEP_ZOOM){
+        writeDescriptor(new File(folder, name + ".dzi"));
+      }
+    } finally{
+      canceled = canceled || !completed;
+      executor.shutdown();
+      for(BufferedImage tile : pendingTiles.values()){
+        BufferPool.release(tile);
+      }
+      pendingTiles.clear();
+    }
+    return completed;
+  }
+
+  /**
+   * Returns the width of the image at a level of the pyramid.
+   */
+  protected int getLevelWidth(int level){
+    return (int)(((long)width + (1L << (maxLevel - level)) - 1) >> (maxLevel - level));
+  }
+
+  /**
+   * Returns the height of the image at a level of the pyramid.
+   */
+  protected int getLevelHeight(int level){
+    return (int)(((long)height + (1L << (maxLevel - level)) - 1) >> (maxLevel - level));
+  }
+
+  private int getColumns(int level){
+    return (getLevelWidth(level) + tileSize - 1) / tileSize;
+  }
+
+  private int getRows(int level){
+    return (getLevelHeight(level) + tileSize - 1) / tileSize;
+  }
+
+  private static long getKey(int level, int column, int row){
+    return ((long)level << 56) | ((long)column << 28) | row;
+  }
+
+  /**
+   * Writes a tile, then computes its parent if its siblings have been written too.
+   */
+  private void tileCompleted(final int level, int column, int row, BufferedImage tile){
+    try{
+      if(canceled || error.get() != null){
+        BufferPool.release(tile);
+        return;
+      }
+      writeTile(level, column, row, tile);
+      if(level == 0){
+        BufferPool.release(tile);
+        return;
+      }
+      pendingTiles.put(getKey(level, column, row), tile);
+      final int parentColumn = column / 2;
+      final int parentRow = row / 2;
+      final int lastColumn = Math.min(getColumns(level), 2 * parentColumn + 2);
+      final int lastRow = Math.min(getRows(level), 2 * parentRow + 2);
+      // The sibling completed last takes the four tiles and downsamples them
+      final BufferedImage[] children = new BufferedImage[4];
+      synchronized(pendingTiles){
+        for(int r = 2 * parentRow; r < lastRow; ++r){
+          for(int c = 2 * parentColumn; c < lastColumn; ++c){
+            if(!pendingTiles.containsKey(getKey(level, c, r))){
+              return;
+            }
+          }
+        }
+        for(int r = 2 * parentRow; r < lastRow; ++r){
+          for(int c = 2 * parentColumn; c < lastColumn; ++c){
+            children[(r - 2 * parentRow) * 2 + c - 2 * parentColumn] = pendingTiles.remove(getKey(level, c, r));
+          }
+        }
+      }
+      executor.execute(new Runnable(){
+        public void run(){
+          try{
+            final BufferedImage parent = downsample(level - 1, parentColumn, parentRow, children);
+            tileCompleted(level - 1, parentColumn, parentRow, parent);
+          } catch(Throwable t){
+            fail(t);
+          } finally{
+            for(BufferedImage child : children){
+              BufferPool.release(child);
+            }
+          }
+        }
+      });
+    } catch(Throwable t){
+      fail(t);
+    } finally{
+      remaining.countDown();
+    }
+  }
+
+  private void fail(Throwable t){
+    error.compareAndSet(null, t);
+    canceled = true;
+    // Release the caller, whose tiles are not all going to be completed
+    while(remaining.getCount() > 0){
+      remaining.countDown();
+    }
+  }
+
+  /**
+   * Returns a tile of <pre>level</pre> computed from the tiles below it, by averaging 2x2 pixels.
+   * Colors are weighted by alpha, so that transparent pixels do not darken their neighbours.
+   * @param children - top left, top right, bottom left and bottom right tiles, which are null
+   * beyond the right or bottom edge of the image.
+   */
+  protected BufferedImage downsample(int level, int column, int row, BufferedImage[] children){
+    final int w = Math.min(tileSize, getLevelWidth(level) - column * tileSize);
+    final int h = Math.min(tileSize, getLevelHeight(level) - row * tileSize);
+    final BufferedImage parent = BufferPool.getImage(w, h);
+    final int[] out = getPixels(parent);
+    for(int i = 0; i < 4; ++i){
+      final BufferedImage child = children[i];
+      if(child == null){
+        continue;
+      }
+      final int cw = child.getWidth();
+      final int ch = child.getHeight();
+      final int[] in = getPixels(child);
+      final int x0 = (i % 2) * tileSize / 2;
+      final int y0 = (i / 2) * tileSize / 2;
+      for(int y = 0; y < (ch + 1) / 2; ++y){
+        for(int x = 0; x < (cw + 1) / 2; ++x){
+          int a = 0, r = 0, g = 0, b = 0, n = 0;
+          for(int dy = 0; dy < 2 && 2 * y + dy < ch; ++dy){
+            for(int dx = 0; dx < 2 && 2 * x + dx < cw; ++dx){
+              final int argb = in[(2 * y + dy) * cw + 2 * x + dx];
+              final int pa = argb >>> 24;
+              a += pa;
+              r += ((argb >> 16) & 0xff) * pa;
+              g += ((argb >> 8) & 0xff) * pa;
+              b += (argb & 0xff) * pa;
+              n++;
+            }
+          }
+          out[(y0 + y) * w + x0 + x] = a == 0 ? 0
+              : ((a + n / 2) / n << 24) | ((r + a / 2) / a << 16) | ((g + a / 2) / a << 8) | (b + a / 2) / a;
+        }
+      }
+    }
+    return parent;
+  }
+
+  /**
+   * Returns the pixels of a TYPE_INT_ARGB image from the BufferPool.
+   */
+  private static int[] getPixels(BufferedImage image){
+    return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Writes a tile at its place in the layout.
+   */
+  protected void writeTile(int level, int column, int row, BufferedImage tile) throws IOException{
+    final Rectangle region = new Rectangle(column * tileSize, row * tileSize, tile.getWidth(), tile.getHeight());
+    final File file;
+    if(layout == Layout.DEEP_ZOOM){
+      file = new File(new File(tileFolder, Integer.toString(level)), column + "_" + row + ".png");
+    } else{
+      file = new File(new File(new File(tileFolder, Integer.toString(level)), Integer.toString(column)), row + ".png");
+      if(tile.getWidth() < tileSize || tile.getHeight() < tileSize){
+        // Viewers expect square tiles
+        final BufferedImage padded = BufferPool.getImage(tileSize, tileSize);
+        padded.getRaster().setDataElements(0, 0, tile.getRaster());
+        try{
+          write(padded, file, region);
+        } finally{
+          BufferPool.release(padded);
+        }
+        return;
+      }
+    }
+    write(tile, file, region);
+  }
+
+  /**
+   * @param region - region of the level the image shows, for Flight Recorder events.
+   */
+  private static void write(BufferedImage image, File file, Rectangle region) throws IOException{
+    final File parent = file.getParentFile();
+    if(!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()){
+      throw new IOException("Could not create " + parent);
+    }
+    final RenderEvents.Event event = RenderEvents.beginExport(file.getPath(), region);
+    boolean written = false;
+    try{
+      PNGStreamWriter.write(image, file);
+      written = true;
+    } finally{
+      event.end(!written);
+    }
+  }
+
+  /**
+   * Writes the Deep Zoom descriptor of the pyramid.
+   */
+  private void writeDescriptor(File file) throws IOException{
+    final Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+    try{
+      out.write(String.format(Locale.ROOT,
+          "<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n"
+          + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"png\" Overlap=\"0\" TileSize=\"%d\">%n"
+          + "  <Size Width=\"%d\" Height=\"%d\"/>%n"
+          + "</Image>%n", tileSize, width, height));
+    } finally{
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package fr.aviz.hybridvis;
+
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Immutable snapshot of everything a preview rendering depends on, taken when the preview
+ * is invalidated: view bounds, window size, renderer settings and simulated display size.
+ * Rendering threads only read the job, so that the view and the settings can change while
+ * it is being rendered.
+ *
+ * Jobs are numbered in the order they are created; the result of a job is only published if
+ * no later job has been published in the meantime.
+ */
+public final class RenderJob {
+
+  private final long version;
+  private final double x, y, width, height;
+  private final int windowWidth, windowHeight;
+  private final int displayWidth, displayHeight;
+  private final int contentVersion;
+  private final int settingsVersion;
+  private final Object settings;
+  private final boolean interactive;
+  private final long creationTime = System.nanoTime();
+
+  RenderJob(long version, Rectangle2D bounds, int windowWidth, int windowHeight, int displayWidth, int displayHeight,
+      int contentVersion, int settingsVersion, Object settings, boolean interactive){
+    this.version = version;
+    this.x = bounds.getX();
+    this.y = bounds.getY();
+    this.width = bounds.getWidth();
+    this.height = bounds.getHeight();
+    this.windowWidth = windowWidth;
+    this.windowHeight = windowHeight;
+    this.displayWidth = displayWidth;
+    this.displayHeight = displayHeight;
+    this.contentVersion = contentVersion;
+    this.settingsVersion = settingsVersion;
+    this.settings = settings;
+    this.interactive = interactive;
+  }
+
+  /**
+   * Returns the time the job was created, from System.nanoTime().
+   */
+  public long getCreationTime(){
+    return creationTime;
+  }
+
+  /**
+   * Returns the number of the job; later jobs have larger numbers.
+   */
+  public long getVersion(){
+    return version;
+  }
+
+  /**
+   * Returns the bounds of the wall in the window.
+   */
+  public Rectangle2D.Double getBounds(){
+    return new Rectangle2D.Double(x, y, width, height);
+  }
+
+  public int getWindowWidth(){
+    return windowWidth;
+  }
+
+  public int getWindowHeight(){
+    return windowHeight;
+  }
+
+  /**
+   * Returns the horizontal resolution of the simulated display.
+   */
+  public int getDisplayWidth(){
+    return displayWidth;
+  }
+
+  /**
+   * Returns the vertical resolution of the simulated display.
+   */
+  public int getDisplayHeight(){
+    return displayHeight;
+  }
+
+  /**
+   * Returns the number of times the content was invalidated before this job was created.
+   */
+  public int getContentVersion(){
+    return contentVersion;
+  }
+
+  /**
+   * Returns the number of times the settings were invalidated before this job was created.
+   */
+  public int getSettingsVersion(){
+    return settingsVersion;
+  }
+
+  /**
+   * Returns the copy of the renderer settings taken for this job (see WallRenderer.snapshotSettings()).
+   * It must not be modified.
+   */
+  public Object getSettings(){
+    return settings;
+  }
+
+  /**
+   * Returns whether the job was created during an interaction, in which case it is rendered at a
+   * lower resolution (see WallRenderer.setInteractiveDownsampling()).
+   */
+  public boolean isInteractive(){
+    return interactive;
+  }
+
+  /**
+   * Returns whether the image of this job only differs from the image of <pre>job</pre> by the view
+   * bounds, i.e., whether it can be obtained by shifting that image.
+   */
+  public boolean hasSameContent(RenderJob job){
+    return job != null && contentVersion == job.contentVersion && settingsVersion == job.settingsVersion
+        && windowWidth == job.windowWidth && windowHeight == job.windowHeight
+        && displayWidth == job.displayWidth && displayHeight == job.displayHeight;
+  }
+}
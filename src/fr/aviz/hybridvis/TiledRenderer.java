@@ -0,0 +1,474 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.aviz.hybridvis;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.aviz.hybridvis.filters.BufferPool;
+import fr.aviz.hybridvis.utils.AggregateProgressMonitor;
+import fr.aviz.hybridvis.utils.PNGStreamWriter;
+import fr.aviz.hybridvis.utils.ProgressMonitor;
+import fr.aviz.hybridvis.utils.RenderEvents;
+
+/**
+ * Renders the full-resolution wall image of a WallImageSource tile by tile, so that memory use
+ * depends on the tile size and not on the size of the wall.
+ *
+ * Each tile is rendered with a margin (halo) as wide as the renderer's filter kernels
+ * (see WallImageSource.getFilterMargin()), then cropped. Margins are clipped to the wall,
+ * so that filters clamp their edges at the same places as when the whole image is rendered
+ * at once, and tile seams are identical to a whole-image render (Java2D's rasterizer may still
+ * round antialiased edges that cross a tile margin slightly differently, by a level or two).
+ *
+ * Tiles are grouped in bands (rows of tiles spanning the whole wall width), which is the
+ * unit in which images are streamed to disk. Independent tiles are rendered, filtered and
+ * composited concurrently (see setParallelism()); this requires the renderer's
+ * renderHybridImage() to be callable from several threads at once.
+ */
+public class TiledRenderer {
+
+  public static final int DEFAULT_TILE_SIZE = 1024;
+  /** Number of complete bands that may wait to be written to disk */
+  public static final int WRITE_QUEUE_CAPACITY = 2;
+
+  protected final WallImageSource renderer;
+  protected final int tileWidth;
+  protected final int tileHeight;
+  protected int parallelism = Runtime.getRuntime().availableProcessors();
+
+  public TiledRenderer(WallImageSource renderer){
+    this(renderer, DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE);
+  }
+
+  public TiledRenderer(WallImageSource renderer, int tileWidth, int tileHeight){
+    if(tileWidth <= 0 || tileHeight <= 0){
+      throw new IllegalArgumentException("Invalid tile size: " + tileWidth + "x" + tileHeight);
+    }
+    this.renderer = renderer;
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+  }
+
+  public int getTileWidth(){
+    return tileWidth;
+  }
+
+  public int getTileHeight(){
+    return tileHeight;
+  }
+
+  /**
+   * Returns the number of tiles rendered concurrently.
+   */
+  public int getParallelism(){
+    return parallelism;
+  }
+
+  /**
+   * Sets the number of tiles rendered concurrently. The default is the number of available processors.
+   * Each tile being rendered needs its own scratch images, so memory use grows with the parallelism.
+   */
+  public void setParallelism(int parallelism){
+    if(parallelism <= 0){
+      throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+    }
+    this.parallelism = parallelism;
+  }
+
+  public int getWallWidth(){
+    return renderer.getSimulatedDisplay().getXResolution();
+  }
+
+  public int getWallHeight(){
+    return renderer.getSimulatedDisplay().getYResolution();
+  }
+
+  /**
+   * Returns the number of columns of tiles needed to cover the wall.
+   */
+  public int getColumnCount(){
+    return (getWallWidth() + tileWidth - 1) / tileWidth;
+  }
+
+  /**
+   * Returns the number of rows of tiles (bands) needed to cover the wall.
+   */
+  public int getRowCount(){
+    return (getWallHeight() + tileHeight - 1) / tileHeight;
+  }
+
+  /**
+   * Returns the bounds of a tile in wall coordinates. Tiles on the right and bottom
+   * edges of the wall may be smaller than the nominal tile size.
+   */
+  public Rectangle getTileBounds(int column, int row){
+    final int x = column * tileWidth;
+    final int y = row * tileHeight;
+    return new Rectangle(x, y, Math.min(tileWidth, getWallWidth() - x), Math.min(tileHeight, getWallHeight() - y));
+  }
+
+  /**
+   * Returns the number of pixels rendered around each tile.
+   */
+  public int getMargin(){
+    return renderer.getFilterMargin(1.0);
+  }
+
+  /**
+   * Renders an arbitrary region of the full-resolution wall image.
+   * @param tile - region to render, in wall coordinates.
+   * @param pm - progress monitor, with a progress range of [0, 1000].
+   * @return an image the size of <pre>tile</pre>, or null if the rendering was canceled.
+   */
+  public BufferedImage renderTile(Rectangle tile, ProgressMonitor pm){
+    final int margin = getMargin();
+    final Rectangle wall = new Rectangle(0, 0, getWallWidth(), getWallHeight());
+    final Rectangle region = new Rectangle(tile.x - margin, tile.y - margin, tile.width + 2 * margin, tile.height + 2 * margin).intersection(wall);
+
+    // Tiles mostly have the same size, so the pool recycles the intermediate images from one tile to the next
+    final BufferedImage tmpNear = BufferPool.getImage(region.width, region.height);
+    final BufferedImage tmpFar = BufferPool.getImage(region.width, region.height);
+    final BufferedImage tmpFinal = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+
+    // The wall, in the coordinates of the region being rendered
+    final Rectangle2D bounds = new Rectangle2D.Double(-region.x, -region.y, wall.width, wall.height);
+    final Graphics2D gFinal = tmpFinal.createGraphics();
+    // Tiles are already rendered in parallel: render their layers one after the other
+    final boolean concurrentLayers = HybridImagePipeline.setConcurrentLayers(parallelism == 1);
+    try{
+      renderer.renderHybridImage(tmpNear, tmpFar, tmpFinal, gFinal, bounds, pm, null);
+    } finally{
+      HybridImagePipeline.setConcurrentLayers(concurrentLayers);
+      gFinal.dispose();
+      BufferPool.release(tmpNear);
+      BufferPool.release(tmpFar);
+    }
+    if(pm.isCanceled()){
+      return null;
+    }
+    renderer.drawOverlays(tmpFinal, region.x, region.y);
+
+    return tmpFinal.getSubimage(tile.x - region.x, tile.y - region.y, tile.width, tile.height);
+  }
+
+  /**
+   * Receives tiles as they are rendered by renderTiles().
+   */
+  public static interface TileListener {
+    /**
+     * Called from the rendering threads, possibly concurrently, as soon as a tile is complete.
+     * @param index - index of the tile in the list passed to renderTiles().
+     * @param bounds - tile bounds in wall coordinates.
+     */
+    public void tileRendered(int index, Rectangle bounds, BufferedImage image) throws IOException;
+  }
+
+  /**
+   * Renders a set of regions of the wall image concurrently, and passes each of them to <pre>listener</pre>
+   * as soon as it is complete. Regions are rendered in order, but may complete in any order.
+   * @param pm - progress monitor; progress is reported between its minimum and maximum.
+   * @return false if the rendering was canceled.
+   */
+  public boolean renderTiles(List<Rectangle> tiles, final TileListener listener, ProgressMonitor pm) throws IOException{
+    final AggregateProgressMonitor progress = new AggregateProgressMonitor(pm, tiles.size());
+    final ExecutorService executor = createExecutor();
+    final List<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>(tiles.size());
+    try{
+      for(int i = 0; i < tiles.size(); ++i){
+        final int index = i;
+        final Rectangle tile = tiles.get(i);
+        final ProgressMonitor tilePm = progress.getPart(i);
+        futures.add(executor.submit(new Callable<BufferedImage>(){
+          public BufferedImage call() throws IOException{
+            if(tilePm.isCanceled()){
+              return null;
+            }
+            final BufferedImage img = renderTile(tile, tilePm);
+            if(img != null){
+              listener.tileRendered(index, tile, img);
+              tilePm.close();
+            }
+            return img;
+          }
+        }));
+      }
+      for(Future<BufferedImage> future : futures){
+        if(getResult(future, progress) == null){
+          return false;
+        }
+      }
+    } finally{
+      for(Future<BufferedImage> future : futures){
+        future.cancel(false);
+      }
+      executor.shutdown();
+    }
+    return true;
+  }
+
+  /**
+   * Renders the whole wall image band by band and streams it to <pre>out</pre>.
+   * Tiles are rendered concurrently by getParallelism() threads. Complete bands are handed
+   * to a writer thread through a queue of WRITE_QUEUE_CAPACITY bands, so that encoding overlaps
+   * the rendering of the next bands; only the bands being rendered or queued are held in memory.
+   * @param pm - progress monitor; progress is reported between its minimum and maximum.
+   * @return false if the rendering was canceled (the PNG stream is then left incomplete).
+   */
+  public boolean renderToPNG(final PNGStreamWriter out, ProgressMonitor pm) throws IOException{
+    final int rows = getRowCount();
+    final int columns = getColumnCount();
+    // Render enough bands at once to keep all threads busy, plus one so that threads done with the
+    // current band start on the next one while its last tiles complete
+    final int bandsInFlight = (parallelism + columns - 1) / columns + 1;
+    final AggregateProgressMonitor progress = new AggregateProgressMonitor(pm, rows * columns);
+    final int bandWidth = getWallWidth();
+    final int bandHeight = Math.min(tileHeight, getWallHeight());
+
+    // Bands to write, in order, and bands that have been written and can be reused.
+    // The writer stops at the first band without image.
+    final BlockingQueue<Band> filled = new ArrayBlockingQueue<Band>(WRITE_QUEUE_CAPACITY);
+    final BlockingQueue<BufferedImage> free = new LinkedBlockingQueue<BufferedImage>();
+
+    final ExecutorService writerExecutor = Executors.newSingleThreadExecutor(createThreadFactory("TiledRenderer-writer"));
+    final Future<Void> writer = writerExecutor.submit(new Callable<Void>(){
+      public Void call() throws Exception{
+        Exception error = null;
+        for(Band band = filled.take(); band.image != null; band = filled.take()){
+          // After an error, keep draining the queue so that the rendering thread never blocks
+          if(error == null){
+            final RenderEvents.Event event = RenderEvents.beginExport(null, new Rectangle(0, out.getRowsWritten(), bandWidth, band.height));
+            try{
+              out.writeRows(((DataBufferInt)band.image.getRaster().getDataBuffer()).getData(), 0, bandWidth, band.height);
+              event.end(false);
+            } catch(Exception e){
+              event.end(true);
+              error = e;
+              progress.abort();
+            }
+          }
+          free.add(band.image);
+        }
+        if(error != null){
+          throw error;
+        }
+        return null;
+      }
+    });
+
+    final ExecutorService executor = createExecutor();
+    final LinkedList<List<Future<BufferedImage>>> pending = new LinkedList<List<Future<BufferedImage>>>();
+    boolean completed = false;
+    try{
+      int nextRow = 0;
+      rendering: for(int row = 0; row < rows; ++row){
+        while(nextRow < rows && nextRow < row + bandsInFlight){
+          pending.add(submitBand(executor, nextRow, progress));
+          nextRow++;
+        }
+        final List<Future<BufferedImage>> tiles = pending.removeFirst();
+        BufferedImage band = free.poll();
+        if(band == null){
+          band = new BufferedImage(bandWidth, bandHeight, BufferedImage.TYPE_INT_ARGB);
+        }
+        for(int column = 0; column < columns; ++column){
+          final BufferedImage img = getResult(tiles.get(column), progress);
+          if(img == null){
+            break rendering;
+          }
+          band.getRaster().setDataElements(column * tileWidth, 0, img.getRaster());
+        }
+        if(!put(filled, new Band(band, getTileBounds(0, row).height), progress)){
+          break;
+        }
+      }
+      completed = !progress.isCanceled();
+    } finally{
+      for(List<Future<BufferedImage>> tiles : pending){
+        for(Future<BufferedImage> tile : tiles){
+          tile.cancel(false);
+        }
+      }
+      executor.shutdown();
+      // Stop the writer once it has written all the bands queued before
+      if(!put(filled, new Band(null, 0), progress)){
+        writer.cancel(true);
+      }
+      writerExecutor.shutdown();
+    }
+    if(writer.isCancelled()){
+      return false;
+    }
+    getResult(writer, progress);
+    return completed;
+  }
+
+  /**
+   * Renders the whole wall image and streams it to a PNG file (see renderToPNG(PNGStreamWriter, ProgressMonitor)),
+   * compressed by getParallelism() threads. If the rendering is canceled or fails, the file is deleted, so that
+   * truncated images are never left behind.
+   * @param compressionLevel - deflate compression level (see Deflater).
+   * @param pm - progress monitor; progress is reported between its minimum and maximum.
+   * @return false if the rendering was canceled.
+   */
+  public boolean renderToPNG(File file, int compressionLevel, ProgressMonitor pm) throws IOException{
+    final OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+    PNGStreamWriter png = null;
+    boolean written = false;
+    try{
+      png = new PNGStreamWriter(os, getWallWidth(), getWallHeight(), compressionLevel, parallelism);
+      if(renderToPNG(png, pm)){
+        png.close();
+        os.close();
+        written = true;
+      }
+    } finally{
+      if(!written){
+        if(png != null){
+          png.abort();
+        }
+        try{
+          os.close();
+        } finally{
+          file.delete();
+        }
+      }
+    }
+    return written;
+  }
+
+  /**
+   * A band of tiles waiting to be written.
+   */
+  private static class Band {
+    final BufferedImage image;
+    final int height;
+
+    Band(BufferedImage image, int height){
+      this.image = image;
+      this.height = height;
+    }
+  }
+
+  /**
+   * Queues a band for writing, waiting for space in the queue.
+   * @return false if the thread was interrupted.
+   */
+  private static boolean put(BlockingQueue<Band> queue, Band band, AggregateProgressMonitor progress){
+    try{
+      queue.put(band);
+      return true;
+    } catch(InterruptedException ie){
+      progress.abort();
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Schedules the rendering of all the tiles of a band.
+   */
+  protected List<Future<BufferedImage>> submitBand(ExecutorService executor, final int row, final AggregateProgressMonitor progress){
+    final int columns = getColumnCount();
+    final List<Future<BufferedImage>> tiles = new ArrayList<Future<BufferedImage>>(columns);
+    for(int column = 0; column < columns; ++column){
+      final Rectangle tile = getTileBounds(column, row);
+      final ProgressMonitor tilePm = progress.getPart(row * columns + column);
+      tiles.add(executor.submit(new Callable<BufferedImage>(){
+        public BufferedImage call(){
+          if(tilePm.isCanceled()){
+            return null;
+          }
+          final BufferedImage img = renderTile(tile, tilePm);
+          tilePm.close();
+          return img;
+        }
+      }));
+    }
+    return tiles;
+  }
+
+  /**
+   * Waits for a tile to be rendered, or for another task to complete.
+   * Failures abort the other tasks reporting to <pre>progress</pre>.
+   * @return the result of the task, or null if the rendering was canceled.
+   */
+  protected static <T> T getResult(Future<T> task, AggregateProgressMonitor progress) throws IOException{
+    try{
+      return task.get();
+    } catch(InterruptedException ie){
+      progress.abort();
+      Thread.currentThread().interrupt();
+      return null;
+    } catch(ExecutionException ee){
+      progress.abort();
+      final Throwable cause = ee.getCause();
+      if(cause instanceof RuntimeException){
+        throw (RuntimeException)cause;
+      } else if(cause instanceof Error){
+        throw (Error)cause;
+      } else if(cause instanceof IOException){
+        throw (IOException)cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Creates the pool of threads that render tiles. Threads are daemons, so that an
+   * ongoing export does not prevent the application from exiting.
+   */
+  protected ExecutorService createExecutor(){
+    return Executors.newFixedThreadPool(parallelism, createThreadFactory("TiledRenderer"));
+  }
+
+  private static ThreadFactory createThreadFactory(final String name){
+    return new ThreadFactory(){
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r){
+        final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import fr.aviz.hybridvis.display.DisplayConfiguration;
+import fr.aviz.hybridvis.utils.ProgressMonitor;
+
+/**
+ * Anything that can render regions of a full-resolution wall image, independently from how the image
+ * is shown (see TiledRenderer). Implemented by WallRenderer for interactive viewers, and by
+ * HybridImageProject for headless rendering, which does not depend on Swing.
+ */
+public interface WallImageSource {
+
+  /**
+   * Returns the display whose full-resolution image is rendered.
+   */
+  public DisplayConfiguration getSimulatedDisplay();
+
+  /**
+   * Renders the image of the wall within bounds. May be called from several threads at once,
+   * each with its own images.
+   * @param spectrumSamples - list receiving samples for power spectrum analysis, or null if no analysis is needed.
+   */
+  public void renderHybridImage(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm, List<BufferedImage> spectrumSamples);
+
+  /**
+   * Returns how far (in pixels) the filters used by renderHybridImage() read around each
+   * output pixel, when rendering at the given scale. A tile of the image can be rendered
+   * exactly provided that at least this many pixels are rendered around it.
+   */
+  public int getFilterMargin(double scale);
+
+  /**
+   * Draws overlays on an image whose top-left corner is at (x, y) in rendered image coordinates.
+   */
+  public void drawOverlays(BufferedImage img, int x, int y);
+}
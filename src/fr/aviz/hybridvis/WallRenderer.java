@@ -20,13 +20,13 @@
 
 package fr.aviz.hybridvis;
 
-import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
-import java.awt.Composite;
 import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
@@ -46,11 +46,22 @@ import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 import javax.imageio.ImageIO;
 import javax.swing.JComponent;
@@ -58,17 +69,25 @@ import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.event.MouseInputListener;
 
 import fr.aviz.hybridvis.display.ClientWindowConfiguration;
 import fr.aviz.hybridvis.display.DisplayConfiguration;
 import fr.aviz.hybridvis.display.WILDDisplay;
 import fr.aviz.hybridvis.display.WILDERDisplay;
+import fr.aviz.hybridvis.filters.BufferPool;
+import fr.aviz.hybridvis.filters.CancellationToken;
 import fr.aviz.hybridvis.utils.GUIUtils;
 import fr.aviz.hybridvis.utils.MathUtils;
 import fr.aviz.hybridvis.utils.NoOpProgressMonitor;
+import fr.aviz.hybridvis.utils.ImageStatistics;
+import fr.aviz.hybridvis.utils.PNGStreamWriter;
 import fr.aviz.hybridvis.utils.ProgressMonitor;
+import fr.aviz.hybridvis.utils.RenderEvents;
+import fr.aviz.hybridvis.utils.RenderMetrics;
 import fr.aviz.hybridvis.utils.SwingProgressMonitor;
 import fr.aviz.hybridvis.utils.settings.Settings.SettingsListener;
 
@@ -91,7 +110,7 @@ import fr.aviz.hybridvis.utils.settings.Settings.SettingsListener;
  * 
  */
 
-public abstract class WallRenderer extends JComponent implements ActionListener, MouseInputListener, MouseWheelListener {
+public abstract class WallRenderer extends JComponent implements WallImageSource, ActionListener, MouseInputListener, MouseWheelListener {
 
 	DisplayConfiguration simulatedDisplay;
   public static final String SIMULATED_DISPLAY_PROPERTY = "simulatedDisplay";
@@ -109,14 +128,61 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 	//////// Local variables
 
 	protected boolean drawTiles = true;
+	// Whether the performance overlay is drawn on top of the preview (see drawPerformance())
+	protected volatile boolean drawPerformance = false;
 	protected Rectangle2D.Double wallWinBounds = new Rectangle2D.Double();
 	protected boolean autofitMode = true;
-	protected volatile BufferedImage windowBuffer = null;
+	// Latest published preview image, replaced as a whole by the rendering thread
+	protected volatile WindowImage windowImage = null;
+	protected int interactiveDownsampling = 4;
+	protected int refinementDelay = 250;
+	private volatile long lastInteractionTime = 0;
+	private Timer refinementTimer = null;
 	protected volatile boolean wallImageRendered = false;
-  // Preview window bounds, in wall coordinates
-	Rectangle2D.Double windowBoundsOnWall = new Rectangle2D.Double();
-	protected volatile boolean scheduleWallImageRendering = false;
-	protected Thread renderThread = null;
+	// Number of invalidations of the content and of the settings, recorded in render jobs
+	protected final AtomicInteger contentVersion = new AtomicInteger();
+	protected final AtomicInteger settingsVersion = new AtomicInteger();
+	private final AtomicLong jobCount = new AtomicLong();
+	// Latest job not yet rendered; it supersedes earlier ones
+	private final AtomicReference<RenderJob> pendingJob = new AtomicReference<RenderJob>();
+	// Whether renderTask is queued or running
+	private final AtomicBoolean renderTaskQueued = new AtomicBoolean(false);
+	// Token of the job being rendered
+	private volatile JobToken renderToken = null;
+	// Jobs rendered, jobs superseded before they were rendered, and jobs canceled while they were rendered
+	private final AtomicLong renderedJobs = new AtomicLong();
+	private final AtomicLong coalescedJobs = new AtomicLong();
+	private final AtomicLong canceledJobs = new AtomicLong();
+	// Latest published image: time from its job's creation to its publication, in ns, and its last render (if recorded)
+	private volatile long previewLatency = -1;
+	private volatile RenderMetrics.Render previewRender = null;
+	private volatile boolean previewPanned = false;
+	// Temporary images of the preview rendering thread
+	private BufferedImage tmpNear = null;
+	private BufferedImage tmpFar = null;
+	private final ThreadPoolExecutor renderExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+	    new ThreadFactory() {
+	  public Thread newThread(Runnable r) {
+	    final Thread t = new Thread(r, "Preview renderer");
+	    t.setDaemon(true);
+	    return t;
+	  }
+	});
+	// Spectrum samples of the latest published image, not analyzed yet
+	private final AtomicReference<List<BufferedImage>> pendingSpectrumSamples = new AtomicReference<List<BufferedImage>>();
+	// Computes power spectra off the preview rendering thread, so that analysis never delays previews
+	private final ThreadPoolExecutor spectrumExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+	    new ThreadFactory() {
+	  public Thread newThread(Runnable r) {
+	    final Thread t = new Thread(r, "Spectrum analysis");
+	    t.setDaemon(true);
+	    return t;
+	  }
+	});
+	protected int exportTileSize = TiledRenderer.DEFAULT_TILE_SIZE;
+	protected int exportParallelism = Runtime.getRuntime().availableProcessors();
+	protected int pyramidTileSize = PyramidExporter.DEFAULT_TILE_SIZE;
+	protected PyramidExporter.Layout pyramidLayout = PyramidExporter.Layout.DEEP_ZOOM;
 	Rectangle2D.Double tmpRect = new Rectangle2D.Double();
 	Point lastMousePos = null;
 	boolean simulatedDisplayListenerEnabled = false;
@@ -135,6 +201,8 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 		super();
 		
 		this.simulatedDisplay = simulatedDisplay_;
+		renderExecutor.allowCoreThreadTimeOut(true);
+		spectrumExecutor.allowCoreThreadTimeOut(true);
 		
 		tileWidthMinusBezel = simulatedDisplay.getTileXResolution() - bezel_left - bezel_right;
 		tileHeightMinusBezel = simulatedDisplay.getTileYResolution() - bezel_top - bezel_bottom;
@@ -167,6 +235,7 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
     addDisplaySettingsListener();
 		
 		GUIUtils.addGlobalKeyListener(KeyEvent.VK_S, this, "save");
+		GUIUtils.addGlobalKeyListener(KeyEvent.VK_P, this, "togglePerformance");
 	}
 
   protected void addDisplaySettingsListener(){
@@ -387,10 +456,23 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 		GUIUtils.drawCheckerBoard(g, wallWinBounds.createIntersection(new Rectangle(0, 0, w, h)), 8, Color.white, new Color(204, 204, 204));
 
 		// -- Draw preview or rendered image
-		if (!wallImageRendered) {
+		final WindowImage windowImage = this.windowImage;
+		if (!wallImageRendered || windowImage == null) {
 			drawPreview(g, wallWinBounds);
 		} else {
-			g.drawImage(windowBuffer, 0, 0, null);
+			// While a pan is being rendered, the previous image is shown at its new place
+			final BufferedImage buffer = windowImage.getImage();
+			final Rectangle2D.Double bufferBounds = windowImage.getBounds();
+			final int level = windowImage.getLevel();
+			final Graphics2D gBuffer = (Graphics2D)g.create();
+			gBuffer.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			gBuffer.drawImage(buffer, (int)Math.round(wallWinBounds.x - bufferBounds.x), (int)Math.round(wallWinBounds.y - bufferBounds.y),
+			    buffer.getWidth() * level, buffer.getHeight() * level, null);
+			gBuffer.dispose();
+			final Graphics2D overlays = (Graphics2D)g.create();
+			setDefaultRenderingHints(overlays);
+			drawOverlays(overlays);
+			overlays.dispose();
 		}
 			
 		// -- Tiles
@@ -403,6 +485,14 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 			g.setStroke(new BasicStroke(60f * scale));
 			paintTiles(g);
 		}
+
+		// -- Performance overlay
+		if (drawPerformance) {
+			final Graphics2D hud = (Graphics2D)g.create();
+			setDefaultRenderingHints(hud);
+			drawPerformance(hud);
+			hud.dispose();
+		}
 		
 		simulatedDisplayListenerEnabled = true;
 	}
@@ -440,50 +530,384 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 	 * Schedules the recomputation of the wall image.
 	 */
 	protected void invalidateWallImage(boolean clearImage) {
-		
-		// Already rendering?
-		if (renderThread != null) {
-			scheduleWallImageRendering = true;
-			return;
-		}
-		
+		contentVersion.incrementAndGet();
+		wallImageRendered = false;
+		scheduleRendering();
+	}
+
+  /**
+   * Schedules the recomputation of the wall image after a change of settings only. The job renders
+   * with a snapshot of the settings (see snapshotSettings()), and subclasses may reuse intermediate
+   * results that do not depend on the settings which changed: HybridImageRenderer keys its cached
+   * near and far layers on the view and the filter settings they were rendered with, so that changing
+   * e.g. an opacity or the post contrast only composites the preview again.
+   */
+  protected void invalidateSettings() {
+    settingsVersion.incrementAndGet();
+    wallImageRendered = false;
+    scheduleRendering();
+  }
+
+	/**
+	 * Schedules the recomputation of the wall image after the view has been panned by a whole number of
+	 * pixels, and nothing else has changed. The previous image is shifted, and only the newly exposed
+	 * parts of the window are rendered.
+	 */
+	protected void invalidatePannedImage() {
+		scheduleRendering();
+	}
+
+	/**
+	 * Takes a snapshot of the view and the settings, and queues its rendering. Jobs that are still
+	 * pending are dropped, and the job being rendered is canceled unless it only differs by a pan.
+	 */
+	private void scheduleRendering() {
 		if (getWidth() <= 0 || getHeight() <= 0) {
 			return;
 		}
-		
-		// Re-render
-		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-		wallImageRendered = false;
-		renderThread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-        BufferedImage tmpNear = null;
-        BufferedImage tmpFar = null;
-        BufferedImage tmpFinal = null;
-        List<float[]> frequencyDists = null;
-        
-				do {
-					scheduleWallImageRendering = false;
-          tmpNear = resetImage(tmpNear);
-          tmpFar = resetImage(tmpFar);
-          tmpFinal = resetImage(tmpFinal);
-          frequencyDists = new ArrayList<float[]>();
-          renderHybridImage(tmpNear, tmpFar, tmpFinal, (Graphics2D)tmpFinal.getGraphics(), wallWinBounds, new NoOpProgressMonitor(), frequencyDists);
-				} while(scheduleWallImageRendering);
-				windowBoundsOnWall.setFrame(xWinToWall(0), yWinToWall(0), xWinToWall(getWidth()) - xWinToWall(0), yWinToWall(getHeight()) - yWinToWall(0));
-				windowBoundsOnWall.setFrame(xWinToWall(0), yWinToWall(0), xWinToWall(getWidth()) - xWinToWall(0), yWinToWall(getHeight()) - yWinToWall(0));
-        windowBuffer = tmpFinal; 
-				wallImageRendered = true;
-        // Draw power spectrum if required.
-        drawPowerSpectrum(frequencyDists);
-				repaint();
-				renderThread = null;
-				setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
-			}
-		});
-    renderThread.setDaemon(true);
-		renderThread.start();
+		final RenderJob job = new RenderJob(jobCount.incrementAndGet(), wallWinBounds, getWidth(), getHeight(),
+		    simulatedDisplay.getXResolution(), simulatedDisplay.getYResolution(), contentVersion.get(), settingsVersion.get(),
+		    snapshotSettings(), isInteracting());
+		if (pendingJob.getAndSet(job) != null) {
+			coalescedJobs.incrementAndGet();
+		}
+		cancelRendering(job);
+		if (renderTaskQueued.compareAndSet(false, true)) {
+			setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+			renderExecutor.execute(renderTask);
+		}
 	}
+
+  /**
+   * Cancels the job being rendered, unless its image can be panned to that of <pre>next</pre>.
+   */
+  private void cancelRendering(RenderJob next) {
+    final JobToken token = renderToken;
+    if (token != null && !next.hasSameContent(token.job)) {
+      token.cancel();
+    }
+  }
+
+  /**
+   * Token of a render job.
+   */
+  private static class JobToken extends CancellationToken {
+    final RenderJob job;
+
+    JobToken(RenderJob job) {
+      this.job = job;
+    }
+  }
+
+  /**
+   * Renders pending jobs until there is none left.
+   */
+  private final Runnable renderTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        RenderJob job;
+        while ((job = pendingJob.getAndSet(null)) != null) {
+          renderJob(job);
+        }
+      } finally {
+        renderTaskQueued.set(false);
+        // A job may have been scheduled after the last check
+        if (pendingJob.get() != null && renderTaskQueued.compareAndSet(false, true)) {
+          renderExecutor.execute(this);
+        } else {
+          setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+        }
+      }
+    }
+  };
+
+  /**
+   * Renders a job and publishes its image, unless the job is canceled.
+   */
+  private void renderJob(RenderJob job) {
+    renderedJobs.incrementAndGet();
+    final JobToken token = new JobToken(job);
+    renderToken = token;
+    // Catch jobs scheduled before the token was visible
+    final RenderJob next = pendingJob.get();
+    if (next != null) {
+      cancelRendering(next);
+    }
+    final CancellationToken previousToken = CancellationToken.setCurrent(token);
+    // Cancels the rendering in between filters
+    final ProgressMonitor pm = new NoOpProgressMonitor() {
+      @Override
+      public boolean isCanceled() {
+        return token.isCanceled();
+      }
+    };
+    try {
+      final int width = job.getWindowWidth();
+      final int height = job.getWindowHeight();
+      final Rectangle2D.Double bounds = job.getBounds();
+
+      // Only this thread replaces the window image, so the previous one stays valid while it is read
+      final WindowImage previous = windowImage;
+      // Pans of a full-resolution image are rendered at full resolution
+      if (previous != null && previous.getLevel() == 1 && job.hasSameContent(previous.getJob())) {
+        BufferedImage target = BufferPool.getImage(width, height);
+        try {
+          if (renderPannedImage(job, previous.getImage(), previous.getBounds(), target, pm)) {
+            // A canceled job has been superseded: do not render it again from scratch
+            if (pm.isCanceled()) {
+              return;
+            }
+            // Power spectra are only computed on whole images
+            publishWindowImage(job, target, 1, null, true);
+            target = null;
+            return;
+          }
+        } finally {
+          BufferPool.release(target);
+        }
+      }
+
+      // During interactions, render at a lower resolution, then refine it one level at a time
+      int level = job.isInteractive() ? interactiveDownsampling : Math.max(1, Math.min(interactiveDownsampling, previous == null ? 1 : previous.getLevel()) / 2);
+      while (true) {
+        final int levelWidth = (width + level - 1) / level;
+        final int levelHeight = (height + level - 1) / level;
+        BufferedImage target = BufferPool.getImage(levelWidth, levelHeight);
+        try {
+          tmpNear = resetImage(tmpNear, levelWidth, levelHeight);
+          tmpFar = resetImage(tmpFar, levelWidth, levelHeight);
+          final Rectangle2D.Double levelBounds = new Rectangle2D.Double(bounds.x / level, bounds.y / level, bounds.width / level, bounds.height / level);
+          final List<BufferedImage> spectrumSamples = level == 1 ? new ArrayList<BufferedImage>() : null;
+          final Graphics2D g = target.createGraphics();
+          renderWindowImage(job, tmpNear, tmpFar, target, g, levelBounds, pm, spectrumSamples, true);
+          g.dispose();
+          if (pm.isCanceled()) {
+            return;
+          }
+          publishWindowImage(job, target, level, spectrumSamples, false);
+          target = null;
+        } finally {
+          BufferPool.release(target);
+        }
+        if (level == 1 || job.isInteractive() || pendingJob.get() != null) {
+          return;
+        }
+        level /= 2;
+      }
+    } catch (CancellationException e) {
+      // Superseded by a later job
+    } finally {
+      if (token.isCanceled()) {
+        canceledJobs.incrementAndGet();
+      }
+      CancellationToken.setCurrent(previousToken);
+      renderToken = null;
+    }
+  }
+
+  /**
+   * Replaces the window image with a completely rendered one, unless a later job has already been published.
+   * Images that are replaced or not published are returned to the BufferPool.
+   * @param level - downsampling factor of the image w.r.t. the window.
+   * @param spectrumSamples - spectrum samples taken while rendering the image, or null.
+   * @param panned - whether the image was shifted from the previous one, only rendering the parts exposed by a pan.
+   */
+  private void publishWindowImage(RenderJob job, BufferedImage image, int level, List<BufferedImage> spectrumSamples, boolean panned) {
+    final WindowImage published = windowImage;
+    if (published != null && published.getJob().getVersion() > job.getVersion()) {
+      BufferPool.release(image);
+      return;
+    }
+    windowImage = new WindowImage(image, job, level);
+    wallImageRendered = true;
+    // Called from the rendering thread right after the image was rendered
+    previewLatency = System.nanoTime() - job.getCreationTime();
+    previewRender = RenderMetrics.getLastRender();
+    previewPanned = panned;
+    if (published != null) {
+      final BufferedImage previous = published.getImage();
+      // Paints run on the event dispatch thread: once those already queued are done, the previous image is unused
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          BufferPool.release(previous);
+        }
+      });
+    }
+    // Draw power spectrum if required, once it is computed
+    if (spectrumSamples != null && !spectrumSamples.isEmpty()) {
+      if (pendingSpectrumSamples.getAndSet(spectrumSamples) == null) {
+        spectrumExecutor.execute(spectrumTask);
+      }
+    }
+    repaint();
+  }
+
+  /**
+   * Computes the power spectra of the latest published image, and draws them on the event dispatch thread.
+   * Images published while spectra are computed supersede the earlier ones.
+   */
+  private final Runnable spectrumTask = new Runnable() {
+    @Override
+    public void run() {
+      List<BufferedImage> samples;
+      while ((samples = pendingSpectrumSamples.getAndSet(null)) != null) {
+        long pixels = 0;
+        for (BufferedImage sample : samples) {
+          pixels += (long)sample.getWidth() * sample.getHeight();
+        }
+        final RenderEvents.Event event = RenderEvents.beginSpectrum(samples.size(), pixels);
+        final List<float[]> frequencyDists = new ArrayList<float[]>();
+        for (BufferedImage sample : samples) {
+          frequencyDists.add(ImageStatistics.get1dFrequencies(sample));
+        }
+        // Spectra of images superseded while they were computed are not drawn
+        final boolean superseded = pendingSpectrumSamples.get() != null;
+        event.end(superseded);
+        if (!superseded) {
+          SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+              drawPowerSpectrum(frequencyDists);
+            }
+          });
+        }
+      }
+    }
+  };
+
+  /**
+   * Records a user interaction (zoom or pan). The preview is rendered at a lower resolution during
+   * interactions, and refined once no interaction has happened for the refinement delay.
+   */
+  protected void interactionPerformed() {
+    lastInteractionTime = System.nanoTime();
+    if (refinementTimer == null) {
+      refinementTimer = new Timer(refinementDelay, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+          scheduleRendering();
+        }
+      });
+      refinementTimer.setRepeats(false);
+    }
+    refinementTimer.setInitialDelay(refinementDelay);
+    refinementTimer.restart();
+  }
+
+  /**
+   * Returns whether the user interacted with the preview less than the refinement delay ago.
+   */
+  protected boolean isInteracting() {
+    return System.nanoTime() - lastInteractionTime < refinementDelay * 1000000L;
+  }
+
+  /**
+   * Returns the factor by which the preview resolution is divided during interactions.
+   */
+  public int getInteractiveDownsampling() {
+    return interactiveDownsampling;
+  }
+
+  /**
+   * Sets the factor by which the preview resolution is divided during interactions, which should be a power
+   * of two. Filter radii are scaled accordingly. Once interactions stop, the preview is refined by halving the
+   * factor until the full resolution is reached. Setting the value to 1 always renders at full resolution.
+   * The default value is 4.
+   */
+  public void setInteractiveDownsampling(int factor) {
+    if (factor < 1) {
+      throw new IllegalArgumentException("Invalid downsampling factor: " + factor);
+    }
+    interactiveDownsampling = factor;
+  }
+
+  /**
+   * Returns the time without interaction after which a low-resolution preview is refined, in milliseconds.
+   */
+  public int getRefinementDelay() {
+    return refinementDelay;
+  }
+
+  /**
+   * Sets the time without interaction after which a low-resolution preview is refined, in milliseconds.
+   * The default value is 250 ms.
+   */
+  public void setRefinementDelay(int millis) {
+    refinementDelay = millis;
+  }
+
+  /**
+   * Renders the window image for <pre>bounds</pre> into <pre>target</pre> by shifting the image <pre>previous</pre>,
+   * rendered for <pre>previousBounds</pre>, and rendering the parts of the window that it does not cover. Pixels
+   * closer than the filter margin to the edges of the previous or of the new window are rendered again, since
+   * filters clamp edges. Results match a render of the whole window, except that Java2D may round antialiased
+   * edges slightly differently (see TiledRenderer).
+   * @param job - job to render, whose bounds are <pre>bounds</pre>.
+   * @return false if the bounds are not a translation of the previous bounds by whole pixels, in which case
+   * the whole image needs to be rendered.
+   */
+  protected boolean renderPannedImage(RenderJob job, BufferedImage previous, Rectangle2D previousBounds, BufferedImage target, ProgressMonitor pm) {
+    final Rectangle2D bounds = job.getBounds();
+    if (previous == null || previous.getWidth() != target.getWidth() || previous.getHeight() != target.getHeight()
+        || bounds.getWidth() != previousBounds.getWidth() || bounds.getHeight() != previousBounds.getHeight()) {
+      return false;
+    }
+    final double ddx = bounds.getX() - previousBounds.getX();
+    final double ddy = bounds.getY() - previousBounds.getY();
+    final int dx = (int)Math.round(ddx);
+    final int dy = (int)Math.round(ddy);
+    if (Math.abs(ddx - dx) > 1e-6 || Math.abs(ddy - dy) > 1e-6) {
+      return false;
+    }
+
+    final int width = target.getWidth();
+    final int height = target.getHeight();
+    final int margin = getFilterMargin(job, bounds.getWidth() / job.getDisplayWidth());
+    // Part of the window where the shifted previous image can be used as is. Along an axis where
+    // the view moved, neither the previous nor the new window edges match, so filters clamped
+    // the previous image differently within the margin of both.
+    final int mx = dx != 0 ? margin : 0;
+    final int my = dy != 0 ? margin : 0;
+    final int x0 = Math.max(0, dx) + mx;
+    final int x1 = Math.min(width, dx + width) - mx;
+    final int y0 = Math.max(0, dy) + my;
+    final int y1 = Math.min(height, dy + height) - my;
+    if (x0 >= x1 || y0 >= y1) {
+      return false;
+    }
+
+    target.getRaster().setRect(dx, dy, previous.getRaster());
+    final Rectangle window = new Rectangle(0, 0, width, height);
+    final Rectangle[] strips = new Rectangle[]{
+        new Rectangle(0, 0, x0, height),
+        new Rectangle(x1, 0, width - x1, height),
+        new Rectangle(x0, 0, x1 - x0, y0),
+        new Rectangle(x0, y1, x1 - x0, height - y1)};
+    for (Rectangle strip : strips) {
+      if (strip.isEmpty()) {
+        continue;
+      }
+      // Render the strip with a margin, clipped to the window so that filters clamp edges as for the whole window
+      final Rectangle region = new Rectangle(strip.x - margin, strip.y - margin, strip.width + 2 * margin, strip.height + 2 * margin).intersection(window);
+      final BufferedImage tmpNear = BufferPool.getImage(region.width, region.height);
+      final BufferedImage tmpFar = BufferPool.getImage(region.width, region.height);
+      final BufferedImage tmpFinal = BufferPool.getImage(region.width, region.height);
+      try {
+        final Rectangle2D regionBounds = new Rectangle2D.Double(bounds.getX() - region.x, bounds.getY() - region.y, bounds.getWidth(), bounds.getHeight());
+        final Graphics2D gFinal = tmpFinal.createGraphics();
+        renderWindowImage(job, tmpNear, tmpFar, tmpFinal, gFinal, regionBounds, pm, null, false);
+        gFinal.dispose();
+        if (pm.isCanceled()) {
+          return true;
+        }
+        target.getRaster().setRect(strip.x, strip.y, tmpFinal.getRaster().createChild(strip.x - region.x, strip.y - region.y, strip.width, strip.height, 0, 0, null));
+      } finally {
+        BufferPool.release(tmpNear);
+        BufferPool.release(tmpFar);
+        BufferPool.release(tmpFinal);
+      }
+    }
+    return true;
+  }
 	
 	protected void updateViewerDistance() {
 		if (clientDisplay.isInitialized()) {
@@ -499,24 +923,201 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 	 * @return
 	 */
 	public boolean renderingInterrupted() {
-		return scheduleWallImageRendering;
+		final CancellationToken token = CancellationToken.getCurrent();
+		return token != null && token.isCanceled();
 	}
 
   // This should be abstract; we leave an empty implementation for now
-  protected void renderHybridImage(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm, List<float[]> frequencyDists){
+  /**
+   * Renders the image of the wall within bounds.
+   * @param spectrumSamples - list receiving samples for power spectrum analysis (see ImageStatistics.getSpectrumSample()),
+   * or null if no analysis is needed.
+   */
+  public void renderHybridImage(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm, List<BufferedImage> spectrumSamples){
     throw new Error("pseudo-abstract method");
   }
 
+  /**
+   * Renders the image of the wall within bounds for a preview or export job, with the settings of the
+   * job (see snapshotSettings()). Called from the preview rendering thread, and from export threads
+   * with wholeWindow false (see createExportSource()), possibly concurrently.
+   * @param wholeWindow - whether the image covers the whole preview window, in which case intermediate
+   * results may be reused from one preview to the next.
+   */
+  protected void renderWindowImage(RenderJob job, BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm,
+      List<BufferedImage> spectrumSamples, boolean wholeWindow){
+    renderHybridImage(tmpNear, tmpFar, tmpFinal, dst, bounds, pm, spectrumSamples);
+  }
+
+  /**
+   * Returns a copy of the settings that renderings depend on, which is attached to render jobs
+   * so that settings can change while a job is rendered. The default implementation returns null.
+   */
+  protected Object snapshotSettings(){
+    return null;
+  }
+
+  /**
+   * Returns how far (in pixels) the filters used by renderHybridImage() read around each
+   * output pixel, when rendering at the given scale. A tile of the image can be rendered
+   * exactly provided that at least this many pixels are rendered around it.
+   */
+  public int getFilterMargin(double scale){
+    return 0;
+  }
+
+  /**
+   * Returns the filter margin when rendering <pre>job</pre> at the given scale (see getFilterMargin(double)).
+   */
+  protected int getFilterMargin(RenderJob job, double scale){
+    return getFilterMargin(scale);
+  }
+
+  /**
+   * Draws annotations on top of a rendered image. The coordinate system is that of
+   * the rendered image (i.e., of the preview window, or of the whole wall image when saving).
+   */
+  protected void drawOverlays(Graphics2D g){
+    //default implementation (no-op)
+  }
+
+  /**
+   * Draws overlays on an image whose top-left corner is at (x, y) in rendered image coordinates.
+   */
+  public void drawOverlays(BufferedImage img, int x, int y){
+    final Graphics2D g = img.createGraphics();
+    setDefaultRenderingHints(g);
+    g.translate(-x, -y);
+    drawOverlays(g);
+    g.dispose();
+  }
+
+  /**
+   * Draws the power spectra of the preview. Called on the event dispatch thread, after the preview was published.
+   */
   protected void drawPowerSpectrum(List<float[]> frequencyDists){
     //default implementation (no-op)
   }
 
+  /**
+   * Draws the performance overlay in the top-right corner of the window, in window coordinates: latency
+   * and stage durations of the latest preview, jobs dropped because later ones superseded them, cache hit
+   * rates, heap use and preview scale. Subclasses add lines through addPerformanceInfo().
+   */
+  protected void drawPerformance(Graphics2D g) {
+    final List<String> lines = new ArrayList<String>();
+    final double scale = wallWinBounds.width / simulatedDisplay.getXResolution();
+    final WindowImage windowImage = this.windowImage;
+    final int level = windowImage == null ? 1 : windowImage.getLevel();
+    final String resolution = !wallImageRendered ? "rendering" : level == 1 ? "full resolution" : "1/" + level + " resolution";
+    lines.add(String.format("Preview: %s, scale %.3f (1:%.1f)", resolution, scale, 1 / scale));
+    final long latency = previewLatency;
+    if (latency >= 0) {
+      lines.add(String.format("Latency: %.1f ms%s", latency / 1e6, previewPanned ? " (pan)" : ""));
+    }
+    final RenderMetrics.Render render = previewRender;
+    if (render != null) {
+      for (String stage : RenderMetrics.getStageOrder()) {
+        final double ms = render.getStage(stage);
+        if (!Double.isNaN(ms)) {
+          lines.add(String.format("  %s: %.1f ms", stage, ms));
+        }
+      }
+    }
+    final long coalesced = coalescedJobs.get();
+    final long canceled = canceledJobs.get();
+    lines.add(String.format("Dropped: %d coalesced, %d canceled, of %d jobs", coalesced, canceled, renderedJobs.get() + coalesced));
+    final long hits = BufferPool.getHitCount();
+    final long total = hits + BufferPool.getMissCount();
+    lines.add("Buffer pool hits: " + formatRate(total == 0 ? Double.NaN : hits / (double)total));
+    addPerformanceInfo(lines);
+    final Runtime runtime = Runtime.getRuntime();
+    lines.add(String.format("Heap: %d / %d MB", (runtime.totalMemory() - runtime.freeMemory()) >> 20, runtime.maxMemory() >> 20));
+
+    final Font f = new Font("SansSerif", Font.PLAIN, 12);
+    g.setFont(f);
+    final FontMetrics m = g.getFontMetrics(f);
+    int width = 0;
+    for (String line : lines) {
+      width = Math.max(width, m.stringWidth(line));
+    }
+    final int x = getWidth() - width - 20;
+    g.setColor(Color.DARK_GRAY);
+    g.fillRect(x, 0, width + 20, m.getHeight() * lines.size() + 10);
+    g.setColor(Color.WHITE);
+    int y = 5 + m.getAscent();
+    for (String line : lines) {
+      g.drawString(line, x + 10, y);
+      y += m.getHeight();
+    }
+  }
+
+  /**
+   * Adds lines to the performance overlay, before the heap use. The default implementation adds none.
+   */
+  protected void addPerformanceInfo(List<String> lines) {
+    //default implementation (no-op)
+  }
+
+  /**
+   * Formats a hit rate in [0, 1] as a percentage, or as "-" if it is NaN.
+   */
+  protected static String formatRate(double rate) {
+    return Double.isNaN(rate) ? "-" : String.format("%.0f%%", 100 * rate);
+  }
+
+  public boolean isDrawPerformance() {
+    return drawPerformance;
+  }
+
+  /**
+   * Shows or hides the performance overlay (see drawPerformance()). The overlay can also be toggled with P.
+   */
+  public void setDrawPerformance(boolean draw) {
+    drawPerformance = draw;
+    repaint();
+  }
+
   /**
    * Generates and saves a hybrid image.
    * If a project folder exists, attempts to save the image in the 'wall-images' subdirectory.
    * Otherwise, prompts for a destination folder.
    */
   protected void saveHybridImageAsyncInteractive(File projectPath){
+    File dstFolder = chooseExportFolder(projectPath);
+    if(dstFolder != null){
+      saveHybridImageAsync(dstFolder);
+    }
+  }
+
+  /**
+   * Generates and saves one hybrid image per screen of the simulated display.
+   * The destination folder is chosen as in saveHybridImageAsyncInteractive.
+   */
+  protected void saveScreenImagesAsyncInteractive(File projectPath){
+    File dstFolder = chooseExportFolder(projectPath);
+    if(dstFolder != null){
+      saveScreenImagesAsync(dstFolder);
+    }
+  }
+
+  /**
+   * Generates and saves a multi-resolution tile pyramid of the hybrid image.
+   * The destination folder is chosen as in saveHybridImageAsyncInteractive.
+   */
+  protected void saveTilePyramidAsyncInteractive(File projectPath){
+    File dstFolder = chooseExportFolder(projectPath);
+    if(dstFolder != null){
+      saveTilePyramidAsync(dstFolder);
+    }
+  }
+
+  /**
+   * Returns the 'wall-images' subdirectory of the project folder if it exists,
+   * otherwise prompts for a destination folder.
+   * @return the folder, or null if the user canceled.
+   */
+  protected File chooseExportFolder(File projectPath){
     File dstFolder = null;
     if((projectPath != null) && projectPath.exists()){
       Path projectDir = projectPath.toPath().getParent();
@@ -529,10 +1130,66 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
       if(jfc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION){
         dstFolder = jfc.getSelectedFile();
       } else {
-        return;
+        return null;
       }
     }
-    saveHybridImageAsync(dstFolder);
+    return dstFolder;
+  }
+
+  /**
+   * Returns the size of the tiles used to render full-resolution images, or 0 if they are rendered in one piece.
+   */
+  public int getExportTileSize(){
+    return exportTileSize;
+  }
+
+  /**
+   * Sets the size of the tiles used to render full-resolution images. Peak memory use is proportional to
+   * the tile size times the wall width. Setting the value to 0 renders the whole image at once, which needs
+   * several full-size images in memory. The default value is TiledRenderer.DEFAULT_TILE_SIZE.
+   */
+  public void setExportTileSize(int tileSize){
+    exportTileSize = tileSize;
+  }
+
+  /**
+   * Returns the number of tiles rendered concurrently when saving full-resolution images.
+   */
+  public int getExportParallelism(){
+    return exportParallelism;
+  }
+
+  /**
+   * Sets the number of tiles rendered concurrently when saving full-resolution images.
+   * The default value is the number of available processors. Only used if the export tile size is not 0.
+   */
+  public void setExportParallelism(int parallelism){
+    exportParallelism = parallelism;
+  }
+
+  /**
+   * Returns the size of the tiles of exported tile pyramids.
+   */
+  public int getPyramidTileSize(){
+    return pyramidTileSize;
+  }
+
+  /**
+   * Sets the size of the tiles of exported tile pyramids, which must be even. The default value is 256.
+   */
+  public void setPyramidTileSize(int tileSize){
+    pyramidTileSize = tileSize;
+  }
+
+  public PyramidExporter.Layout getPyramidLayout(){
+    return pyramidLayout;
+  }
+
+  /**
+   * Sets the directory layout of exported tile pyramids. The default is Deep Zoom.
+   */
+  public void setPyramidLayout(PyramidExporter.Layout layout){
+    pyramidLayout = layout;
   }
 
   /**
@@ -542,27 +1199,37 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
     final SwingProgressMonitor pm = new SwingProgressMonitor(this, "Saving image", "Generating hybrid image", 0, 1000);
     pm.setMillisToDecideToPopup(100);
     pm.setMillisToPopup(200);
+    if(exportTileSize > 0){
+      saveTiledHybridImageAsync(dstFolder, pm);
+      return;
+    }
     new SwingWorker<Void, Void>(){
       protected Void doInBackground(){
         pm.setProgress(0);
-        final int canvasWidth = simulatedDisplay.getXResolution();
-        final int canvasHeight = simulatedDisplay.getYResolution();
+        final WallImageSource source = createExportSource();
+        final int canvasWidth = source.getSimulatedDisplay().getXResolution();
+        final int canvasHeight = source.getSimulatedDisplay().getYResolution();
         Rectangle2D.Double bounds = new Rectangle2D.Double(0,0,canvasWidth,canvasHeight);
         final BufferedImage tmpNear = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
         final BufferedImage tmpFar = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
         final BufferedImage tmpFinal = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
 
-        renderHybridImage(tmpNear, tmpFar, tmpFinal, (Graphics2D)tmpFinal.getGraphics(), bounds, pm, new ArrayList<float[]>()); 
+        source.renderHybridImage(tmpNear, tmpFar, tmpFinal, (Graphics2D)tmpFinal.getGraphics(), bounds, pm, null); 
         if(pm.isCanceled()){
           return null;
         }
+        source.drawOverlays(tmpFinal, 0, 0);
 
+        final File dstFile = new File(dstFolder, getExportFileName());
+        final RenderEvents.Event event = RenderEvents.beginExport(dstFile.getPath(), new Rectangle(0, 0, canvasWidth, canvasHeight));
+        boolean written = false;
         try{
           pm.setNote("Writing to disk");
-				  String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(Calendar.getInstance().getTime());
-				  ImageIO.write(tmpFinal, "png", new File(dstFolder, timeStamp+"_"+getClass().getName()+ ".png"));
+				  written = ImageIO.write(tmpFinal, "png", dstFile);
         } catch(Exception ex){
           ex.printStackTrace();
+        } finally{
+          event.end(!written);
         }
 
         pm.close();
@@ -572,15 +1239,172 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
     }.execute();
   }
 
+  /**
+   * Returns a source that renders the full-resolution wall image with a snapshot of the current display
+   * and settings (see snapshotSettings()), for exports: every tile and the filter margin use the same
+   * settings, even if they are changed while the image is being exported.
+   */
+  protected WallImageSource createExportSource() {
+    final DisplayConfiguration display = simulatedDisplay;
+    final int width = display.getXResolution();
+    final int height = display.getYResolution();
+    // The job is never published, so it does not need a version
+    final RenderJob job = new RenderJob(0, new Rectangle2D.Double(0, 0, width, height), width, height, width, height,
+        contentVersion.get(), settingsVersion.get(), snapshotSettings(), false);
+    return new WallImageSource() {
+      public DisplayConfiguration getSimulatedDisplay() {
+        return display;
+      }
+
+      public void renderHybridImage(BufferedImage tmpNear, BufferedImage tmpFar, BufferedImage tmpFinal, Graphics2D dst, Rectangle2D bounds, ProgressMonitor pm,
+          List<BufferedImage> spectrumSamples) {
+        renderWindowImage(job, tmpNear, tmpFar, tmpFinal, dst, bounds, pm, spectrumSamples, false);
+      }
+
+      public int getFilterMargin(double scale) {
+        return WallRenderer.this.getFilterMargin(job, scale);
+      }
+
+      public void drawOverlays(BufferedImage img, int x, int y) {
+        WallRenderer.this.drawOverlays(img, x, y);
+      }
+    };
+  }
+
+  /**
+   * Asynchronously renders a hybrid image tile by tile and streams it to disk.
+   */
+  protected void saveTiledHybridImageAsync(final File dstFolder, final SwingProgressMonitor pm){
+    new SwingWorker<Void, Void>(){
+      protected Void doInBackground(){
+        pm.setProgress(0);
+        final TiledRenderer tiledRenderer = new TiledRenderer(createExportSource(), exportTileSize, exportTileSize);
+        tiledRenderer.setParallelism(exportParallelism);
+        try{
+          tiledRenderer.renderToPNG(new File(dstFolder, getExportFileName()), Deflater.DEFAULT_COMPRESSION, pm);
+        } catch(Exception ex){
+          ex.printStackTrace();
+        }
+
+        pm.close();
+
+        return null;
+      }
+    }.execute();
+  }
+
+  /**
+   * Asynchronously renders one image per screen (tile) of the simulated display and saves them in a new
+   * subfolder of <pre>dstFolder</pre>, as screen_[column]_[row].png. Screens are rendered concurrently and each image
+   * is written as soon as it is complete, so the image of the whole wall is never held in memory.
+   */
+  protected void saveScreenImagesAsync(final File dstFolder){
+    final SwingProgressMonitor pm = new SwingProgressMonitor(this, "Saving screen images", "Generating hybrid images", 0, 1000);
+    pm.setMillisToDecideToPopup(100);
+    pm.setMillisToPopup(200);
+    new SwingWorker<Void, Void>(){
+      protected Void doInBackground(){
+        pm.setProgress(0);
+        final File screenFolder = new File(dstFolder, getExportBaseName());
+        if(!screenFolder.mkdirs()){
+          System.err.println("Could not create " + screenFolder);
+          pm.close();
+          return null;
+        }
+        final WallImageSource source = createExportSource();
+        final DisplayConfiguration display = source.getSimulatedDisplay();
+        final TiledRenderer tiledRenderer = new TiledRenderer(source, display.getTileXResolution(), display.getTileYResolution());
+        tiledRenderer.setParallelism(exportParallelism);
+        final List<Rectangle> screens = new ArrayList<Rectangle>();
+        for(int row = 0; row < display.getYTiles(); ++row){
+          for(int column = 0; column < display.getXTiles(); ++column){
+            screens.add(tiledRenderer.getTileBounds(column, row));
+          }
+        }
+        try{
+          tiledRenderer.renderTiles(screens, new TiledRenderer.TileListener(){
+            public void tileRendered(int index, Rectangle bounds, BufferedImage image) throws IOException{
+              final int column = index % display.getXTiles();
+              final int row = index / display.getXTiles();
+              final File file = new File(screenFolder, "screen_" + column + "_" + row + ".png");
+              final RenderEvents.Event event = RenderEvents.beginExport(file.getPath(), bounds);
+              boolean written = false;
+              try{
+                PNGStreamWriter.write(image, file);
+                written = true;
+              } finally{
+                event.end(!written);
+              }
+            }
+          }, pm);
+        } catch(Exception ex){
+          ex.printStackTrace();
+        }
+
+        pm.close();
+
+        return null;
+      }
+    }.execute();
+  }
+
+  /**
+   * Asynchronously renders the hybrid image and saves it as a tile pyramid in <pre>dstFolder</pre>, for zoomable
+   * image viewers (see PyramidExporter). Only the full-resolution tiles are rendered.
+   */
+  protected void saveTilePyramidAsync(final File dstFolder){
+    final SwingProgressMonitor pm = new SwingProgressMonitor(this, "Saving tile pyramid", "Generating hybrid image", 0, 1000);
+    pm.setMillisToDecideToPopup(100);
+    pm.setMillisToPopup(200);
+    new SwingWorker<Void, Void>(){
+      protected Void doInBackground(){
+        pm.setProgress(0);
+        final PyramidExporter exporter = new PyramidExporter(createExportSource(), pyramidTileSize, pyramidLayout);
+        exporter.setParallelism(exportParallelism);
+        if(exportTileSize > 0){
+          exporter.setRenderTileSize(exportTileSize);
+        }
+        try{
+          exporter.export(dstFolder, getExportBaseName(), pm);
+        } catch(Exception ex){
+          ex.printStackTrace();
+        }
+
+        pm.close();
+
+        return null;
+      }
+    }.execute();
+  }
+
+  /**
+   * Returns a timestamped name for exported images, without extension.
+   */
+  protected String getExportBaseName(){
+    String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(Calendar.getInstance().getTime());
+    return timeStamp+"_"+getClass().getName();
+  }
+
+  protected String getExportFileName(){
+    return getExportBaseName() + ".png";
+  }
+
   protected void setDefaultRenderingHints(Graphics2D g){
-		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-		g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+    HybridImagePipeline.setDefaultRenderingHints(g);
   }
 
 	protected BufferedImage resetImage(BufferedImage img) {
-		if (img == null || img.getWidth() != getWidth() || img.getHeight() != getHeight()) {
-			img = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+		return resetImage(img, getWidth(), getHeight());
+	}
+
+	/**
+	 * Returns a transparent image of the given size, which is <pre>img</pre> if it has this size.
+	 * Otherwise, <pre>img</pre> is returned to the BufferPool and must not be used anymore.
+	 */
+	protected BufferedImage resetImage(BufferedImage img, int width, int height) {
+		if (img == null || img.getWidth() != width || img.getHeight() != height) {
+			BufferPool.release(img);
+			img = BufferPool.getImage(width, height);
 		} else {
 			makeImageTransparent(img);
 		}
@@ -588,18 +1412,15 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 	}
 	
 	protected static void makeImageTransparent(BufferedImage im) {
-		Graphics2D g2 = (Graphics2D)im.getGraphics();
-		Composite oldComposite = g2.getComposite();
-		g2.setComposite(AlphaComposite.getInstance(AlphaComposite.CLEAR, 0.0f));
-		Rectangle2D.Double rect = new Rectangle2D.Double(0, 0, im.getWidth(), im.getHeight()); 
-		g2.fill(rect);
-		g2.setComposite(oldComposite);
+		BufferPool.clear(im);
 	}
 		
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		if (e.getActionCommand().equals("save")) {
       //saveHybridImageAsync();
+		} else if (e.getActionCommand().equals("togglePerformance")) {
+			setDrawPerformance(!drawPerformance);
 		}
 	}
 	
@@ -660,7 +1481,8 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 	@Override
 	public void mouseDragged(MouseEvent arg0) {
 		pan(arg0.getX() - lastMousePos.x, arg0.getY() - lastMousePos.y);
-		invalidateWallImage(false);
+		interactionPerformed();
+		invalidatePannedImage();
 		repaint();
 		lastMousePos = arg0.getPoint();
 	}
@@ -694,6 +1516,7 @@ public abstract class WallRenderer extends JComponent implements ActionListener,
 		double zoom = Math.pow(1.02, arg0.getWheelRotation());
 		autofitMode = false;
 		zoomToSize(wallWinBounds.width * zoom, wallWinBounds.height * zoom, arg0.getX(), arg0.getY());
+		interactionPerformed();
 		invalidateWallImage(false);
 		updateViewerDistance();
 	}
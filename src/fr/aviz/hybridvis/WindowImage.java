@@ -0,0 +1,88 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package fr.aviz.hybridvis;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Immutable snapshot of the latest published preview: the rendered image, the job it was rendered for
+ * and its downsampling. The rendering thread publishes a new snapshot as a whole, so that paints on the
+ * event dispatch thread always see an image together with the bounds it was rendered at.
+ *
+ * The image itself is owned by the renderer, which returns it to the BufferPool once it is replaced.
+ */
+public final class WindowImage {
+
+  private final BufferedImage image;
+  private final RenderJob job;
+  private final int level;
+  // Bounds of the window in wall coordinates
+  private final double wallX, wallY, wallWidth, wallHeight;
+
+  /**
+   * @param level - downsampling of the image w.r.t. the window (1 is full resolution).
+   */
+  WindowImage(BufferedImage image, RenderJob job, int level){
+    this.image = image;
+    this.job = job;
+    this.level = level;
+    final Rectangle2D bounds = job.getBounds();
+    this.wallX = -bounds.getX() / bounds.getWidth() * job.getDisplayWidth();
+    this.wallY = -bounds.getY() / bounds.getHeight() * job.getDisplayHeight();
+    this.wallWidth = image.getWidth() * level / bounds.getWidth() * job.getDisplayWidth();
+    this.wallHeight = image.getHeight() * level / bounds.getHeight() * job.getDisplayHeight();
+  }
+
+  public BufferedImage getImage(){
+    return image;
+  }
+
+  /**
+   * Returns the job the image was rendered for.
+   */
+  public RenderJob getJob(){
+    return job;
+  }
+
+  /**
+   * Returns the downsampling of the image w.r.t. the window (1 is full resolution).
+   */
+  public int getLevel(){
+    return level;
+  }
+
+  /**
+   * Returns the bounds of the wall in the window when the image was rendered.
+   */
+  public Rectangle2D.Double getBounds(){
+    return job.getBounds();
+  }
+
+  /**
+   * Returns the part of the wall covered by the image, in wall coordinates.
+   */
+  public Rectangle2D.Double getBoundsOnWall(){
+    return new Rectangle2D.Double(wallX, wallY, wallWidth, wallHeight);
+  }
+}
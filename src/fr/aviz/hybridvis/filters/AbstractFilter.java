@@ -0,0 +1,126 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.filters;
+
+import java.awt.RenderingHints;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Base class for the filters of this package, which work on packed ARGB pixels.
+ *
+ * Images of TYPE_INT_ARGB that own their whole raster are filtered directly in their
+ * DataBufferInt, without copying pixels, and can be filtered in place (src == dst).
+ * Other images are converted with getRGB() and setRGB().
+ */
+public abstract class AbstractFilter implements BufferedImageOp {
+
+  /**
+   * Returns the pixels of an image, without copying them if possible.
+   */
+  protected static int[] getPixels(BufferedImage img){
+    final int[] pixels = getDirectPixels(img);
+    if(pixels != null){
+      return pixels;
+    }
+    return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+  }
+
+  /**
+   * Returns the backing array of an image if it holds exactly the image's ARGB pixels,
+   * row after row, or null otherwise.
+   */
+  protected static int[] getDirectPixels(BufferedImage img){
+    if(img.getType() != BufferedImage.TYPE_INT_ARGB){
+      return null;
+    }
+    final WritableRaster raster = img.getRaster();
+    if(raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+        || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+        || ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride() != img.getWidth()){
+      return null;
+    }
+    final DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+    if(buffer.getOffset() != 0 || buffer.getNumBanks() != 1){
+      return null;
+    }
+    return buffer.getData();
+  }
+
+  /**
+   * Returns the array that the pixels of <pre>dst</pre> should be written to, given the pixels
+   * <pre>in</pre> read from <pre>src</pre>: the backing array of dst if possible, otherwise
+   * <pre>in</pre> itself when it is a private copy.
+   */
+  protected static int[] getOutputPixels(BufferedImage src, int[] in, BufferedImage dst){
+    if(src == dst){
+      return in;
+    }
+    final int[] out = getDirectPixels(dst);
+    if(out != null){
+      return out;
+    }
+    return in != getDirectPixels(src) ? in : new int[in.length];
+  }
+
+  /**
+   * Stores pixels into an image, unless they already are its backing array.
+   */
+  protected static void setPixels(BufferedImage img, int[] pixels){
+    if(pixels != getDirectPixels(img)){
+      img.setRGB(0, 0, img.getWidth(), img.getHeight(), pixels, 0, img.getWidth());
+    }
+  }
+
+  @Override
+  public BufferedImage createCompatibleDestImage(BufferedImage src, ColorModel dstCM){
+    if(dstCM == null){
+      dstCM = src.getColorModel();
+    }
+    return new BufferedImage(dstCM, dstCM.createCompatibleWritableRaster(src.getWidth(), src.getHeight()), dstCM.isAlphaPremultiplied(), null);
+  }
+
+  @Override
+  public Rectangle2D getBounds2D(BufferedImage src){
+    return new Rectangle2D.Float(0, 0, src.getWidth(), src.getHeight());
+  }
+
+  @Override
+  public Point2D getPoint2D(Point2D srcPt, Point2D dstPt){
+    if(dstPt == null){
+      dstPt = new Point2D.Double();
+    }
+    dstPt.setLocation(srcPt.getX(), srcPt.getY());
+    return dstPt;
+  }
+
+  @Override
+  public RenderingHints getRenderingHints(){
+    return null;
+  }
+}
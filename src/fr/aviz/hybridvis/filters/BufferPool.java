@@ -0,0 +1,250 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package fr.aviz.hybridvis.filters;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of pixel arrays and ARGB images shared by the renderers and the filters, so that
+ * rendering previews one after the other does not allocate new buffers each time.
+ * Arrays are grouped in buckets of sizes spaced by at most an eighth of their size, images
+ * by their exact size. Only a few buffers are kept per bucket, through soft references,
+ * so that the pool never prevents memory from being reclaimed.
+ *
+ * A buffer must not be used anymore once released, and must be released at most once.
+ */
+public class BufferPool {
+
+  /** Maximum number of buffers kept per bucket */
+  private static final int MAX_PER_BUCKET = 4;
+  /** Maximum number of buckets per kind of buffer; sizes that are not reused (e.g. while resizing a window) are dropped */
+  private static final int MAX_BUCKETS = 16;
+
+  private static final ConcurrentMap<Integer, Queue<SoftReference<int[]>>> ints = new ConcurrentHashMap<Integer, Queue<SoftReference<int[]>>>();
+  private static final ConcurrentMap<Integer, Queue<SoftReference<float[]>>> floats = new ConcurrentHashMap<Integer, Queue<SoftReference<float[]>>>();
+  private static final ConcurrentMap<Long, Queue<SoftReference<BufferedImage>>> images = new ConcurrentHashMap<Long, Queue<SoftReference<BufferedImage>>>();
+
+  // Bytes of the arrays handed out and not released yet, and the peaks being tracked (see trackPeak())
+  private static final AtomicLong arrayBytesInUse = new AtomicLong();
+  private static final List<AtomicLong> peaks = new CopyOnWriteArrayList<AtomicLong>();
+  // Requests served from the pool, and requests that needed a new buffer
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private BufferPool(){
+  }
+
+  /**
+   * Returns the length of the arrays of the bucket holding arrays of at least <pre>length</pre> elements.
+   */
+  static int getBucketSize(int length){
+    if(length <= 1024){
+      return Math.max(1, Integer.highestOneBit(Math.max(1, length) - 1) << 1);
+    }
+    final int step = Integer.highestOneBit(length - 1) >> 3;
+    return (int)Math.min(Integer.MAX_VALUE, ((long)length + step - 1) / step * step);
+  }
+
+  /**
+   * Returns an array of at least <pre>length</pre> ints, whose content is undefined.
+   */
+  public static int[] getInts(int length){
+    final int size = getBucketSize(length);
+    final int[] array = poll(ints, size);
+    acquired(4L * size);
+    return array != null ? array : new int[size];
+  }
+
+  /**
+   * Returns an array obtained from getInts() to the pool.
+   */
+  public static void release(int[] array){
+    if(array != null && getBucketSize(array.length) == array.length){
+      arrayBytesInUse.addAndGet(-4L * array.length);
+      offer(ints, array.length, array);
+    }
+  }
+
+  /**
+   * Returns an array of at least <pre>length</pre> floats, whose content is undefined.
+   */
+  public static float[] getFloats(int length){
+    final int size = getBucketSize(length);
+    final float[] array = poll(floats, size);
+    acquired(4L * size);
+    return array != null ? array : new float[size];
+  }
+
+  /**
+   * Returns an array obtained from getFloats() to the pool.
+   */
+  public static void release(float[] array){
+    if(array != null && getBucketSize(array.length) == array.length){
+      arrayBytesInUse.addAndGet(-4L * array.length);
+      offer(floats, array.length, array);
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the arrays obtained from getInts() and getFloats() that have not
+   * been released yet, i.e. the scratch memory currently used by the filters.
+   */
+  public static long getArrayBytesInUse(){
+    return arrayBytesInUse.get();
+  }
+
+  /**
+   * Starts tracking the peak of getArrayBytesInUse(). The value returned is kept up to date until it is
+   * passed to untrackPeak().
+   */
+  public static AtomicLong trackPeak(){
+    final AtomicLong peak = new AtomicLong(arrayBytesInUse.get());
+    peaks.add(peak);
+    return peak;
+  }
+
+  /**
+   * Stops updating a peak returned by trackPeak().
+   */
+  public static void untrackPeak(AtomicLong peak){
+    peaks.remove(peak);
+  }
+
+  /**
+   * Returns the number of arrays and images requested so far that were taken from the pool.
+   */
+  public static long getHitCount(){
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of arrays and images requested so far that had to be allocated.
+   */
+  public static long getMissCount(){
+    return misses.get();
+  }
+
+  private static void acquired(long bytes){
+    final long inUse = arrayBytesInUse.addAndGet(bytes);
+    for(AtomicLong peak : peaks){
+      long value;
+      while((value = peak.get()) < inUse && !peak.compareAndSet(value, inUse)){
+        // Retry
+      }
+    }
+  }
+
+  /**
+   * Returns a transparent TYPE_INT_ARGB image of the given size.
+   */
+  public static BufferedImage getImage(int width, int height){
+    final BufferedImage image = poll(images, getImageKey(width, height));
+    if(image == null){
+      return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+    clear(image);
+    return image;
+  }
+
+  /**
+   * Returns an image to the pool. Only TYPE_INT_ARGB images can be pooled; others are ignored.
+   */
+  public static void release(BufferedImage image){
+    if(image != null && image.getType() == BufferedImage.TYPE_INT_ARGB){
+      offer(images, getImageKey(image.getWidth(), image.getHeight()), image);
+    }
+  }
+
+  /**
+   * Makes all the pixels of an image transparent.
+   */
+  public static void clear(BufferedImage image){
+    final int[] pixels = AbstractFilter.getDirectPixels(image);
+    if(pixels != null){
+      Arrays.fill(pixels, 0, image.getWidth() * image.getHeight(), 0);
+    } else{
+      final Graphics2D g = image.createGraphics();
+      g.setComposite(AlphaComposite.Clear);
+      g.fillRect(0, 0, image.getWidth(), image.getHeight());
+      g.dispose();
+    }
+  }
+
+  /**
+   * Releases all the pooled buffers.
+   */
+  public static void clear(){
+    ints.clear();
+    floats.clear();
+    images.clear();
+  }
+
+  private static long getImageKey(int width, int height){
+    return ((long)width << 32) | (height & 0xffffffffL);
+  }
+
+  private static <K, T> T poll(ConcurrentMap<K, Queue<SoftReference<T>>> pool, K key){
+    final Queue<SoftReference<T>> bucket = pool.get(key);
+    if(bucket != null){
+      SoftReference<T> ref;
+      while((ref = bucket.poll()) != null){
+        final T buffer = ref.get();
+        if(buffer != null){
+          hits.incrementAndGet();
+          return buffer;
+        }
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  private static <K, T> void offer(ConcurrentMap<K, Queue<SoftReference<T>>> pool, K key, T buffer){
+    Queue<SoftReference<T>> bucket = pool.get(key);
+    if(bucket == null){
+      if(pool.size() >= MAX_BUCKETS){
+        pool.clear();
+      }
+      final Queue<SoftReference<T>> created = new ConcurrentLinkedQueue<SoftReference<T>>();
+      bucket = pool.putIfAbsent(key, created);
+      if(bucket == null){
+        bucket = created;
+      }
+    }
+    // The size is only approximate under contention, which is fine for a cache
+    if(bucket.size() < MAX_PER_BUCKET){
+      bucket.offer(new SoftReference<T>(buffer));
+    }
+  }
+}
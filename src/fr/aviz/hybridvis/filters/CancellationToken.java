@@ -0,0 +1,78 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package fr.aviz.hybridvis.filters;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Flag through which a computation is asked to stop. A token can be made current for a
+ * thread, in which case the filters of this package called from that thread check it
+ * between chunks of rows (see ParallelRows), and abort by throwing a CancellationException.
+ */
+public class CancellationToken {
+
+  private static final ThreadLocal<CancellationToken> current = new ThreadLocal<CancellationToken>();
+
+  private volatile boolean canceled = false;
+
+  /**
+   * Asks the computations using this token to stop.
+   */
+  public void cancel(){
+    canceled = true;
+  }
+
+  public boolean isCanceled(){
+    return canceled;
+  }
+
+  /**
+   * Throws a CancellationException if this token has been canceled.
+   */
+  public void check(){
+    if(canceled){
+      throw new CancellationException();
+    }
+  }
+
+  /**
+   * Returns the token of the calling thread, or null if it has none.
+   */
+  public static CancellationToken getCurrent(){
+    return current.get();
+  }
+
+  /**
+   * Sets the token of the calling thread, which may be null.
+   * @return the previous token of the thread, to be restored once the computation is done.
+   */
+  public static CancellationToken setCurrent(CancellationToken token){
+    final CancellationToken previous = current.get();
+    if(token == null){
+      current.remove();
+    } else{
+      current.set(token);
+    }
+    return previous;
+  }
+}
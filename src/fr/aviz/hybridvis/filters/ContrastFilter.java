@@ -0,0 +1,107 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.filters;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Adjusts the brightness and contrast of an image, with the same semantics as
+ * com.jhlabs.image.ContrastFilter: each color channel f in [0, 1] becomes
+ * f = f*brightness; f = (f-0.5f)*contrast+0.5f; and alpha is left unchanged.
+ * The transfer function is tabulated on the 256 channel levels, and rows are
+ * processed in parallel (see ParallelRows).
+ */
+public class ContrastFilter extends AbstractFilter {
+
+  private float brightness = 1.0f;
+  private float contrast = 1.0f;
+  private int[] table = null;
+
+  public ContrastFilter(){
+  }
+
+  public ContrastFilter(float contrast, float brightness){
+    this.contrast = contrast;
+    this.brightness = brightness;
+  }
+
+  public float getBrightness(){
+    return brightness;
+  }
+
+  public void setBrightness(float brightness){
+    this.brightness = brightness;
+    table = null;
+  }
+
+  public float getContrast(){
+    return contrast;
+  }
+
+  public void setContrast(float contrast){
+    this.contrast = contrast;
+    table = null;
+  }
+
+  protected float transferFunction(float f){
+    f = f * brightness;
+    f = (f - 0.5f) * contrast + 0.5f;
+    return f;
+  }
+
+  /**
+   * Returns the transfer function applied to channel levels, as a table of 256 levels.
+   */
+  public int[] getTable(){
+    if(table == null){
+      final int[] t = new int[256];
+      for(int i = 0; i < 256; i++){
+        t[i] = GaussianFilter.clamp((int)(255 * transferFunction(i / 255.0f)));
+      }
+      table = t;
+    }
+    return table;
+  }
+
+  @Override
+  public BufferedImage filter(BufferedImage src, BufferedImage dst){
+    final int width = src.getWidth();
+    final int height = src.getHeight();
+    if(dst == null){
+      dst = createCompatibleDestImage(src, null);
+    }
+
+    final int[] in = getPixels(src);
+    final int[] out = getOutputPixels(src, in, dst);
+    final int[] t = getTable();
+    ParallelRows.forEach(height, width, new ParallelRows.Rows(){
+      public void run(int from, int to){
+        for(int i = from * width, end = to * width; i < end; ++i){
+          final int argb = in[i];
+          out[i] = (argb & 0xff000000) | (t[(argb >> 16) & 0xff] << 16) | (t[(argb >> 8) & 0xff] << 8) | t[argb & 0xff];
+        }
+      }
+    });
+    setPixels(dst, out);
+    return dst;
+  }
+}
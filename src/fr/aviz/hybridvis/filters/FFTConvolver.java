@@ -0,0 +1,176 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.filters;
+
+import edu.emory.mathcs.jtransforms.fft.FloatFFT_2D;
+
+/**
+ * Convolves an image with a symmetric separable kernel in the frequency domain, block by
+ * block with overlap-save: each block is transformed along with a halo as wide as the kernel
+ * radius, filled with clamped pixels past the image edges, multiplied by the spectrum of the
+ * kernel, transformed back, and the halo, which is polluted by the circular convolution, is
+ * discarded. The cost per pixel grows with the logarithm of the block size instead of the
+ * kernel size.
+ *
+ * The kernel is symmetric, so its spectrum is real: two color channels are filtered with a
+ * single complex transform, one in the real and one in the imaginary part.
+ *
+ * Colors are premultiplied by alpha as with the spatial convolution of GaussianFilter,
+ * but the image is filtered in one two-dimensional pass instead of two rounded passes,
+ * and the transforms use floats, so results may differ from the spatial convolution
+ * by one level.
+ */
+class FFTConvolver {
+
+  /** Smallest size of the transforms, so that halos do not dominate small kernels */
+  static final int MIN_BLOCK_SIZE = 256;
+
+  private final int radius;
+  private final int fftWidth;
+  private final int fftHeight;
+  // Spectrum of the kernel, along rows and along columns
+  private final float[] spectrumX;
+  private final float[] spectrumY;
+
+  FFTConvolver(float[] kernel, int width, int height){
+    radius = kernel.length / 2;
+    fftWidth = getBlockSize(radius, width);
+    fftHeight = getBlockSize(radius, height);
+    spectrumX = getSpectrum(kernel, fftWidth);
+    spectrumY = getSpectrum(kernel, fftHeight);
+  }
+
+  /**
+   * Returns a power-of-two transform size that keeps the halo small compared to the block,
+   * but is not much larger than the image plus its halo.
+   */
+  static int getBlockSize(int radius, int length){
+    final int size = Integer.highestOneBit(Math.max(MIN_BLOCK_SIZE, 8 * radius) - 1) << 1;
+    final int needed = length + 2 * radius;
+    return needed <= size ? Integer.highestOneBit(needed - 1) << 1 : size;
+  }
+
+  /**
+   * Returns the discrete Fourier transform of a kernel centered on index 0, which is real
+   * since the kernel is symmetric.
+   */
+  private static float[] getSpectrum(float[] kernel, int size){
+    final int center = kernel.length / 2;
+    final float[] spectrum = new float[size];
+    for(int u = 0; u < size; ++u){
+      double sum = kernel[center];
+      for(int k = 1; k <= center; ++k){
+        sum += 2 * kernel[center + k] * Math.cos(2 * Math.PI * u * k / size);
+      }
+      spectrum[u] = (float)sum;
+    }
+    return spectrum;
+  }
+
+  /**
+   * Convolves <pre>in</pre> and writes filter.combine(original, convolved) into <pre>out</pre>,
+   * which must not be <pre>in</pre>, since blocks read the pixels around them.
+   */
+  void convolve(final int[] in, final int[] out, final int width, final int height, final GaussianFilter filter){
+    final int blockWidth = fftWidth - 2 * radius;
+    final int blockHeight = fftHeight - 2 * radius;
+    final int columns = (width + blockWidth - 1) / blockWidth;
+    final int rows = (height + blockHeight - 1) / blockHeight;
+    ParallelRows.forEach(rows * columns, fftWidth * fftHeight, new ParallelRows.Rows(){
+      public void run(int from, int to){
+        final FloatFFT_2D fft = new FloatFFT_2D(fftHeight, fftWidth);
+        // Transforms only use the first 2 * fftWidth * fftHeight elements
+        final float[] ar = BufferPool.getFloats(2 * fftWidth * fftHeight);
+        final float[] gb = BufferPool.getFloats(2 * fftWidth * fftHeight);
+        try{
+          for(int block = from; block < to; ++block){
+            final int x0 = (block % columns) * blockWidth;
+            final int y0 = (block / columns) * blockHeight;
+            convolveBlock(fft, ar, gb, in, out, width, height, x0, y0,
+                Math.min(blockWidth, width - x0), Math.min(blockHeight, height - y0), filter);
+          }
+        } finally{
+          BufferPool.release(ar);
+          BufferPool.release(gb);
+        }
+      }
+    });
+  }
+
+  private void convolveBlock(FloatFFT_2D fft, float[] ar, float[] gb, int[] in, int[] out, int width, int height,
+      int x0, int y0, int blockWidth, int blockHeight, GaussianFilter filter){
+    for(int i = 0, index = 0; i < fftHeight; ++i){
+      final int offset = Math.min(height - 1, Math.max(0, y0 - radius + i)) * width;
+      for(int j = 0; j < fftWidth; ++j, index += 2){
+        final int argb = in[offset + Math.min(width - 1, Math.max(0, x0 - radius + j))];
+        final int pa = (argb >> 24) & 0xff;
+        int pr = (argb >> 16) & 0xff;
+        int pg = (argb >> 8) & 0xff;
+        int pb = argb & 0xff;
+        // Truncated to integers, as in GaussianFilter
+        final float a255 = pa * (1.0f / 255.0f);
+        pr *= a255;
+        pg *= a255;
+        pb *= a255;
+        ar[index] = pa;
+        ar[index + 1] = pr;
+        gb[index] = pg;
+        gb[index + 1] = pb;
+      }
+    }
+
+    fft.complexForward(ar);
+    fft.complexForward(gb);
+    for(int v = 0, index = 0; v < fftHeight; ++v){
+      final float sy = spectrumY[v];
+      for(int u = 0; u < fftWidth; ++u, index += 2){
+        final float s = sy * spectrumX[u];
+        ar[index] *= s;
+        ar[index + 1] *= s;
+        gb[index] *= s;
+        gb[index + 1] *= s;
+      }
+    }
+    fft.complexInverse(ar, true);
+    fft.complexInverse(gb, true);
+
+    for(int y = 0; y < blockHeight; ++y){
+      int index = 2 * ((y + radius) * fftWidth + radius);
+      for(int x = 0, pos = (y0 + y) * width + x0; x < blockWidth; ++x, ++pos, index += 2){
+        final float fa = ar[index];
+        float fr = ar[index + 1], fg = gb[index], fb = gb[index + 1];
+        if(fa < 0.5f){
+          // Rounding noise in transparent areas, where the spatial convolution gives exact zeros
+          fr = fg = fb = 0;
+        } else if(fa != 255){
+          final float f = 255.0f / fa;
+          fr *= f;
+          fg *= f;
+          fb *= f;
+        }
+        final int argb = (GaussianFilter.clamp((int)(fa + 0.5)) << 24) | (GaussianFilter.clamp((int)(fr + 0.5)) << 16)
+            | (GaussianFilter.clamp((int)(fg + 0.5)) << 8) | GaussianFilter.clamp((int)(fb + 0.5));
+        out[pos] = filter.combine(in[pos], argb);
+      }
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.filters;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Gaussian blur implemented as a separable convolution, with the same kernel, rounding and
+ * edge handling as com.jhlabs.image.GaussianFilter, which it replaces: the radius is three
+ * standard deviations, the kernel is truncated at the radius, edges are clamped and colors
+ * are premultiplied by alpha while filtering. Results are identical to that filter.
+ *
+ * Rows are convolved in parallel (see ParallelRows), and the intermediate transposed image
+ * is taken from the BufferPool, so filtering a TYPE_INT_ARGB image in place allocates no
+ * image-sized array once the pool is warm.
+ *
+ * From a radius of getFFTRadius() pixels, the convolution is computed in the frequency domain
+ * instead (see FFTConvolver), which is faster for large kernels but may differ by one level.
+ */
+public class GaussianFilter extends AbstractFilter {
+
+  /**
+   * Radius from which the frequency-domain convolution is faster than the spatial one,
+   * as measured with HighPassFilter on 2000x2000 images (spatial and FFT times are
+   * 0.44s and 0.38s at radius 15, 0.82s and 0.55s at radius 30, 2.2s and 0.95s at radius 100).
+   */
+  public static final float DEFAULT_FFT_RADIUS = 15;
+
+  protected float radius;
+  protected float[] kernel;
+  protected float fftRadius = DEFAULT_FFT_RADIUS;
+
+  public GaussianFilter(){
+    this(2);
+  }
+
+  public GaussianFilter(float radius){
+    setRadius(radius);
+  }
+
+  public float getRadius(){
+    return radius;
+  }
+
+  public void setRadius(float radius){
+    this.radius = radius;
+    kernel = makeKernel(radius);
+  }
+
+  /**
+   * Returns the radius from which the convolution is computed in the frequency domain.
+   */
+  public float getFFTRadius(){
+    return fftRadius;
+  }
+
+  /**
+   * Sets the radius from which the convolution is computed in the frequency domain.
+   * Float.POSITIVE_INFINITY always uses the spatial convolution. The default value
+   * is DEFAULT_FFT_RADIUS.
+   */
+  public void setFFTRadius(float fftRadius){
+    this.fftRadius = fftRadius;
+  }
+
+  @Override
+  public BufferedImage filter(BufferedImage src, BufferedImage dst){
+    final int width = src.getWidth();
+    final int height = src.getHeight();
+    if(dst == null){
+      dst = createCompatibleDestImage(src, null);
+    }
+
+    final int[] in = getPixels(src);
+    final int[] out = getOutputPixels(src, in, dst);
+    if(radius > 0 && radius >= fftRadius){
+      // Blocks read around themselves, so they cannot be written in place
+      final int[] target = out == in ? BufferPool.getInts(width * height) : out;
+      try{
+        new FFTConvolver(kernel, width, height).convolve(in, target, width, height, this);
+        if(target != out){
+          System.arraycopy(target, 0, out, 0, width * height);
+        }
+      } finally{
+        if(target != out){
+          BufferPool.release(target);
+        }
+      }
+    } else if(radius > 0){
+      final int[] transposed = BufferPool.getInts(width * height);
+      try{
+        convolveAndTranspose(in, transposed, null, width, height, true, false);
+        convolveAndTranspose(transposed, out, in, height, width, false, true);
+      } finally{
+        BufferPool.release(transposed);
+      }
+    } else{
+      for(int i = 0; i < width * height; ++i){
+        out[i] = combine(in[i], in[i]);
+      }
+    }
+    setPixels(dst, out);
+    return dst;
+  }
+
+  /**
+   * Returns the output pixel for an input pixel and its blurred value. The Gaussian blur
+   * returns the latter; subclasses such as HighPassFilter combine both.
+   */
+  protected int combine(int original, int blurred){
+    return blurred;
+  }
+
+  /**
+   * Convolves every row of <pre>in</pre> with the kernel and writes it as a column of <pre>out</pre>.
+   * @param original - if not null, the pixels of the untransposed image, which are combined
+   * with the convolved pixels written at the same index (see combine()).
+   */
+  protected void convolveAndTranspose(final int[] in, final int[] out, final int[] original, final int width, final int height,
+      final boolean premultiply, final boolean unpremultiply){
+    ParallelRows.forEach(height, width, new ParallelRows.Rows(){
+      public void run(int from, int to){
+        convolveAndTranspose(in, out, original, width, height, from, to, premultiply, unpremultiply);
+      }
+    });
+  }
+
+  private void convolveAndTranspose(int[] in, int[] out, int[] original, int width, int height, int fromRow, int toRow,
+      boolean premultiply, boolean unpremultiply){
+    final float[] matrix = kernel;
+    final int cols = matrix.length;
+    final int cols2 = cols / 2;
+    // Rows padded with copies of their edge pixels, so that edges are clamped without tests
+    final int padded = width + 2 * cols2;
+    final float[] a = new float[padded];
+    final float[] r = new float[padded];
+    final float[] g = new float[padded];
+    final float[] b = new float[padded];
+
+    for(int y = fromRow; y < toRow; ++y){
+      final int offset = y * width;
+      for(int i = 0; i < padded; ++i){
+        final int argb = in[offset + Math.min(width - 1, Math.max(0, i - cols2))];
+        final int pa = (argb >> 24) & 0xff;
+        int pr = (argb >> 16) & 0xff;
+        int pg = (argb >> 8) & 0xff;
+        int pb = argb & 0xff;
+        if(premultiply){
+          // Truncated to integers, as in com.jhlabs.image.GaussianFilter
+          final float a255 = pa * (1.0f / 255.0f);
+          pr *= a255;
+          pg *= a255;
+          pb *= a255;
+        }
+        a[i] = pa;
+        r[i] = pr;
+        g[i] = pg;
+        b[i] = pb;
+      }
+
+      for(int x = 0, index = y; x < width; ++x, index += height){
+        float fa = 0, fr = 0, fg = 0, fb = 0;
+        for(int k = 0; k < cols; ++k){
+          final float f = matrix[k];
+          fa += f * a[x + k];
+          fr += f * r[x + k];
+          fg += f * g[x + k];
+          fb += f * b[x + k];
+        }
+        if(unpremultiply && fa != 0 && fa != 255){
+          final float f = 255.0f / fa;
+          fr *= f;
+          fg *= f;
+          fb *= f;
+        }
+        final int argb = (clamp((int)(fa + 0.5)) << 24) | (clamp((int)(fr + 0.5)) << 16) | (clamp((int)(fg + 0.5)) << 8) | clamp((int)(fb + 0.5));
+        out[index] = original == null ? argb : combine(original[index], argb);
+      }
+    }
+  }
+
+  static int clamp(int c){
+    return c < 0 ? 0 : (c > 255 ? 255 : c);
+  }
+
+  /**
+   * Returns the normalized one-dimensional Gaussian kernel for a radius, computed as in
+   * com.jhlabs.image.GaussianFilter. Null coefficients beyond the radius are left out.
+   */
+  public static float[] makeKernel(float radius){
+    final int r = (int)Math.ceil(radius);
+    final int rows = r * 2 + 1;
+    final float[] matrix = new float[rows];
+    final float sigma = radius / 3;
+    final float sigma22 = 2 * sigma * sigma;
+    final float sigmaPi2 = 2 * (float)Math.PI * sigma;
+    final float sqrtSigmaPi2 = (float)Math.sqrt(sigmaPi2);
+    final float radius2 = radius * radius;
+    float total = 0;
+    int index = 0;
+    for(int row = -r; row <= r; row++){
+      final float distance = row * row;
+      if(distance > radius2){
+        matrix[index] = 0;
+      } else{
+        matrix[index] = (float)Math.exp(-(distance) / sigma22) / sqrtSigmaPi2;
+      }
+      total += matrix[index];
+      index++;
+    }
+    for(int i = 0; i < rows; i++){
+      matrix[i] /= total;
+    }
+
+    int zeros = 0;
+    while(zeros < r && matrix[zeros] == 0){
+      ++zeros;
+    }
+    if(zeros == 0){
+      return matrix;
+    }
+    final float[] trimmed = new float[rows - 2 * zeros];
+    System.arraycopy(matrix, zeros, trimmed, 0, trimmed.length);
+    return trimmed;
+  }
+}
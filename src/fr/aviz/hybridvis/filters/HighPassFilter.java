@@ -0,0 +1,50 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.filters;
+
+/**
+ * High-pass filter: subtracts a Gaussian blur of the image from the image, with the same
+ * semantics as com.jhlabs.image.HighPassFilter. Each color channel becomes
+ * (original + 255 - blurred) / 2, so that uniform areas become mid-gray, and the alpha
+ * channel of the image is kept.
+ *
+ * The difference is computed while the blurred pixels are produced, so the filter makes no
+ * more passes over the image than GaussianFilter.
+ */
+public class HighPassFilter extends GaussianFilter {
+
+  public HighPassFilter(){
+    super(10);
+  }
+
+  public HighPassFilter(float radius){
+    super(radius);
+  }
+
+  @Override
+  protected int combine(int original, int blurred){
+    final int r = (((original >> 16) & 0xff) + 255 - ((blurred >> 16) & 0xff)) / 2;
+    final int g = (((original >> 8) & 0xff) + 255 - ((blurred >> 8) & 0xff)) / 2;
+    final int b = ((original & 0xff) + 255 - (blurred & 0xff)) / 2;
+    return (original & 0xff000000) | (r << 16) | (g << 8) | b;
+  }
+}
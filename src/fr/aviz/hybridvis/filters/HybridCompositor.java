@@ -0,0 +1,175 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.filters;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Composites the filtered near and far images of a hybrid image onto a background in a
+ * single pass over the pixels. For every pixel, it computes what the following sequence of
+ * full-image operations would produce:
+ * - a ContrastFilter applied to the near image,
+ * - the near image drawn on the background with AlphaComposite.SRC_OVER and the near opacity,
+ * - the far image drawn on the result with AlphaComposite.SRC_OVER and the far opacity,
+ * - a ContrastFilter applied to the result.
+ *
+ * Compositing uses the 8-bit arithmetic of Java2D's software loops for TYPE_INT_ARGB images,
+ * so results are the same as with Graphics2D.drawImage(). Rows are processed in parallel
+ * (see ParallelRows), directly in the DataBufferInt of TYPE_INT_ARGB images.
+ */
+public class HybridCompositor {
+
+  // Java2D's mul8table and div8table (see AlphaMath.c)
+  private static final byte[] MUL8 = new byte[256 * 256];
+  private static final byte[] DIV8 = new byte[256 * 256];
+  static{
+    for(int i = 1; i < 256; i++){
+      final long inc = (i << 16) + (i << 8) + i;
+      long val = inc + (1 << 23);
+      for(int j = 1; j < 256; j++){
+        MUL8[(i << 8) | j] = (byte)(val >> 24);
+        val += inc;
+      }
+    }
+    for(int i = 1; i < 256; i++){
+      final long inc = (0xff000000L + (i / 2)) / i;
+      long val = 1 << 23;
+      for(int j = 0; j < i; j++){
+        DIV8[(i << 8) | j] = (byte)(val >> 24);
+        val += inc;
+      }
+      for(int j = i; j < 256; j++){
+        DIV8[(i << 8) | j] = (byte)255;
+      }
+    }
+  }
+
+  private ContrastFilter nearContrast = null;
+  private float nearOpacity = 1.0f;
+  private float farOpacity = 1.0f;
+  private ContrastFilter postContrast = null;
+
+  /**
+   * Sets the contrast and brightness transform applied to the near image before it is
+   * composited, or null to leave it unchanged.
+   */
+  public void setNearContrast(ContrastFilter contrast){
+    nearContrast = contrast;
+  }
+
+  public void setNearOpacity(float opacity){
+    nearOpacity = opacity;
+  }
+
+  public void setFarOpacity(float opacity){
+    farOpacity = opacity;
+  }
+
+  /**
+   * Sets the contrast and brightness transform applied to the composited image, or null
+   * to leave it unchanged.
+   */
+  public void setPostContrast(ContrastFilter contrast){
+    postContrast = contrast;
+  }
+
+  /**
+   * Composites <pre>near</pre> and <pre>far</pre> onto <pre>dst</pre>, which holds the
+   * background, and writes the result into <pre>dst</pre>. The near and far images are
+   * not modified.
+   * @param near - near image, or null if it is not drawn.
+   * @param far - far image, or null if it is not drawn.
+   */
+  public void composite(BufferedImage near, BufferedImage far, BufferedImage dst){
+    final int width = dst.getWidth();
+    final int height = dst.getHeight();
+    final int[] nearPixels = near == null ? null : AbstractFilter.getPixels(near);
+    final int[] farPixels = far == null ? null : AbstractFilter.getPixels(far);
+    final int[] dstPixels = AbstractFilter.getPixels(dst);
+    final int[] nearTable = nearContrast == null ? null : nearContrast.getTable();
+    final int[] postTable = postContrast == null ? null : postContrast.getTable();
+    // Extra alpha, as rounded by AlphaComposite
+    final int nearAlpha = (int)(nearOpacity * 255.0f + 0.5f);
+    final int farAlpha = (int)(farOpacity * 255.0f + 0.5f);
+
+    ParallelRows.forEach(height, width, new ParallelRows.Rows(){
+      public void run(int from, int to){
+        for(int i = from * width, end = to * width; i < end; ++i){
+          int argb = dstPixels[i];
+          if(nearPixels != null){
+            argb = srcOver(nearTable == null ? nearPixels[i] : transfer(nearTable, nearPixels[i]), nearAlpha, argb);
+          }
+          if(farPixels != null){
+            argb = srcOver(farPixels[i], farAlpha, argb);
+          }
+          dstPixels[i] = postTable == null ? argb : transfer(postTable, argb);
+        }
+      }
+    });
+    AbstractFilter.setPixels(dst, dstPixels);
+  }
+
+  private static int transfer(int[] table, int argb){
+    return (argb & 0xff000000) | (table[(argb >> 16) & 0xff] << 16) | (table[(argb >> 8) & 0xff] << 8) | table[argb & 0xff];
+  }
+
+  private static int mul8(int a, int b){
+    return MUL8[(a << 8) | b] & 0xff;
+  }
+
+  private static int div8(int v, int a){
+    return DIV8[(a << 8) | v] & 0xff;
+  }
+
+  /**
+   * Draws a non-premultiplied pixel over another with an extra alpha, as Java2D's SrcOver loops.
+   */
+  private static int srcOver(int src, int extraAlpha, int dst){
+    final int srcA = mul8(extraAlpha, src >>> 24);
+    if(srcA == 0){
+      return dst;
+    }
+    if(srcA == 0xff){
+      return src | 0xff000000;
+    }
+    int resR = mul8(srcA, (src >> 16) & 0xff);
+    int resG = mul8(srcA, (src >> 8) & 0xff);
+    int resB = mul8(srcA, src & 0xff);
+    int resA = srcA;
+    final int dstA = dst >>> 24;
+    if(dstA != 0){
+      final int dstF = mul8(0xff - srcA, dstA);
+      resA += dstF;
+      if(dstF != 0){
+        resR += mul8(dstF, (dst >> 16) & 0xff);
+        resG += mul8(dstF, (dst >> 8) & 0xff);
+        resB += mul8(dstF, dst & 0xff);
+      }
+    }
+    if(resA < 0xff){
+      resR = div8(resR, resA);
+      resG = div8(resG, resA);
+      resB = div8(resB, resA);
+    }
+    return (resA << 24) | (resR << 16) | (resG << 8) | resB;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.filters;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits the rows of an image into chunks and processes them on a shared pool of daemon
+ * threads. The calling thread processes chunks too, and only waits for the chunks that
+ * other threads have started, so that callers which are themselves rendering concurrently
+ * (see TiledRenderer) are never blocked behind a busy pool. Calls made from a pool thread
+ * run sequentially. If the calling thread has a current CancellationToken, it is checked
+ * before each chunk.
+ */
+public class ParallelRows {
+
+  /** Rows are not split into chunks of less than this number of pixels */
+  public static final int MIN_CHUNK_PIXELS = 1 << 15;
+  /** Number of chunks per thread, so that threads finishing early can take over remaining rows */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  /**
+   * Processes the rows [from, to[ of an image.
+   */
+  public interface Rows {
+    void run(int from, int to);
+  }
+
+  private static final int threads = Runtime.getRuntime().availableProcessors();
+  private static final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+    private final AtomicInteger count = new AtomicInteger();
+    public Thread newThread(Runnable r){
+      final Thread t = new Worker(r, "ParallelRows-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private static class Worker extends Thread {
+    Worker(Runnable r, String name){
+      super(r, name);
+    }
+  }
+
+  private ParallelRows(){
+  }
+
+  /**
+   * Returns the number of threads rows are spread on.
+   */
+  public static int getParallelism(){
+    return threads;
+  }
+
+  /**
+   * Runs <pre>task</pre> on all rows [0, rows[ and returns once every row has been processed.
+   * Exceptions thrown by the task are rethrown in the calling thread.
+   * @param rowLength - number of pixels in a row, used to size chunks
+   * @throws java.util.concurrent.CancellationException if the current token of the calling
+   * thread is canceled before all rows have been processed.
+   */
+  public static void forEach(final int rows, int rowLength, final Rows task){
+    final CancellationToken token = CancellationToken.getCurrent();
+    final long pixels = (long)rows * rowLength;
+    if(threads == 1 || Thread.currentThread() instanceof Worker){
+      // Sequential, in chunks so that cancellation is still checked regularly
+      final int chunks = token == null ? 1 : (int)Math.max(1, Math.min(rows, pixels / MIN_CHUNK_PIXELS));
+      for(int chunk = 0; chunk < chunks; ++chunk){
+        if(token != null){
+          token.check();
+        }
+        task.run((int)((long)rows * chunk / chunks), (int)((long)rows * (chunk + 1) / chunks));
+      }
+      return;
+    }
+    final int chunks = (int)Math.min(Math.min(threads * CHUNKS_PER_THREAD, rows), pixels / MIN_CHUNK_PIXELS);
+    if(chunks <= 1){
+      if(token != null){
+        token.check();
+      }
+      task.run(0, rows);
+      return;
+    }
+
+    final AtomicInteger next = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(chunks);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Runnable runner = new Runnable(){
+      public void run(){
+        int chunk;
+        while((chunk = next.getAndIncrement()) < chunks){
+          try{
+            if(token != null && token.isCanceled()){
+              error.compareAndSet(null, new CancellationException());
+            }
+            if(error.get() == null){
+              task.run((int)((long)rows * chunk / chunks), (int)((long)rows * (chunk + 1) / chunks));
+            }
+          } catch(Throwable t){
+            error.compareAndSet(null, t);
+          } finally{
+            done.countDown();
+          }
+        }
+      }
+    };
+    for(int i = 1; i < Math.min(threads, chunks); ++i){
+      executor.execute(runner);
+    }
+    runner.run();
+
+    // Chunks write into arrays owned by the caller: wait for them even if interrupted
+    boolean interrupted = false;
+    while(true){
+      try{
+        done.await();
+        break;
+      } catch(InterruptedException e){
+        interrupted = true;
+      }
+    }
+    if(interrupted){
+      Thread.currentThread().interrupt();
+    }
+
+    final Throwable t = error.get();
+    if(t instanceof RuntimeException){
+      throw (RuntimeException)t;
+    } else if(t instanceof Error){
+      throw (Error)t;
+    } else if(t != null){
+      throw new RuntimeException(t);
+    }
+  }
+}
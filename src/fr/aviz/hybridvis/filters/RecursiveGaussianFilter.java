@@ -0,0 +1,279 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.aviz.hybridvis.filters;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Gaussian blur implemented as a third-order recursive (IIR) filter, after
+ * I.T. Young, L.J. van Vliet, "Recursive implementation of the Gaussian filter",
+ * Signal Processing 44(2), 1995, with the boundary conditions of B. Triggs, M. Sdika,
+ * "Boundary conditions for Young-van Vliet recursive filtering", IEEE TSP 54(6), 2006.
+ *
+ * The cost per pixel does not depend on the radius, whereas it grows linearly with the
+ * radius for the convolution of GaussianFilter. Radii follow the same convention as that
+ * filter and fr.aviz.hybridvis.models.GaussianFilter: the radius is three standard
+ * deviations. Edges are clamped and colors are premultiplied by alpha while filtering,
+ * as with GaussianFilter.
+ *
+ * The recursive filter approximates the Gaussian kernel itself, not the truncated kernel
+ * used for convolution (which ignores the 0.27% of the Gaussian beyond the radius), and its
+ * impulse response is slightly more peaked. Compared to the convolution on images of opaque
+ * rectangles, results differ by less than 1 level (out of 255) on average, and by at most
+ * 7 to 11 levels on step edges for radii from 6 to 30 pixels (3 to 4 levels for larger radii).
+ * Below a radius of 1.5 pixels (sigma below 0.5) the approximation does not hold, and the
+ * filter blurs as much as with a radius of 1.5 pixels.
+ */
+public class RecursiveGaussianFilter extends AbstractFilter {
+
+  /** Largest change, in levels, that the pixels beyond getSupport() may cause in each pass */
+  public static final float SUPPORT_ERROR = 0.05f;
+
+  private final float radius;
+
+  public RecursiveGaussianFilter(float radius){
+    this.radius = radius;
+  }
+
+  public float getRadius(){
+    return radius;
+  }
+
+  /**
+   * Returns the number of pixels beyond which the influence of pixels is negligible. Unlike a
+   * convolution kernel, the recursive filter has an infinite support: its impulse response decays
+   * with its slowest pole, more slowly than a Gaussian, and is cut where the rest of it sums to
+   * less than SUPPORT_ERROR / 255 on each side (about twice the radius).
+   *
+   * Changing all the pixels beyond the support, as tiled rendering does by clamping tile regions,
+   * changes the result of each pass by less than SUPPORT_ERROR levels before rounding. The first pass
+   * is rounded before the second one, so results may still differ by one level where a value is
+   * within SUPPORT_ERROR of a rounding boundary, and by two levels at worst; colors of translucent
+   * pixels are divided by their alpha, which may amplify the difference. In practice, a few dozen
+   * pixels of a 1500x700 image rendered in 256-pixel tiles differ from a whole-image render.
+   */
+  public static int getSupport(float radius){
+    return radius > 0 ? new Coefficients(radius / 3).getSupport(SUPPORT_ERROR / 255) : 0;
+  }
+
+  @Override
+  public BufferedImage filter(BufferedImage src, BufferedImage dst){
+    final int width = src.getWidth();
+    final int height = src.getHeight();
+    if(dst == null){
+      dst = createCompatibleDestImage(src, null);
+    }
+
+    final int[] in = getPixels(src);
+    final int[] out = getOutputPixels(src, in, dst);
+    if(radius > 0){
+      final Coefficients c = new Coefficients(radius / 3);
+      final int[] transposed = BufferPool.getInts(width * height);
+      try{
+        blurAndTranspose(c, in, transposed, width, height, true, false);
+        blurAndTranspose(c, transposed, out, height, width, false, true);
+      } finally{
+        BufferPool.release(transposed);
+      }
+    } else if(out != in){
+      System.arraycopy(in, 0, out, 0, width * height);
+    }
+    setPixels(dst, out);
+    return dst;
+  }
+
+  /**
+   * Blurs every row of <pre>in</pre> and writes it as a column of <pre>out</pre>.
+   */
+  static void blurAndTranspose(final Coefficients c, final int[] in, final int[] out, final int width, final int height,
+      final boolean premultiply, final boolean unpremultiply){
+    ParallelRows.forEach(height, width, new ParallelRows.Rows(){
+      public void run(int from, int to){
+        blurAndTranspose(c, in, out, width, height, from, to, premultiply, unpremultiply);
+      }
+    });
+  }
+
+  private static void blurAndTranspose(Coefficients c, int[] in, int[] out, int width, int height, int fromRow, int toRow,
+      boolean premultiply, boolean unpremultiply){
+    final float[] a = new float[width];
+    final float[] r = new float[width];
+    final float[] g = new float[width];
+    final float[] b = new float[width];
+    for(int y = fromRow; y < toRow; ++y){
+      final int offset = y * width;
+      for(int x = 0; x < width; ++x){
+        final int argb = in[offset + x];
+        final float pa = (argb >>> 24);
+        a[x] = pa;
+        r[x] = (argb >> 16) & 0xff;
+        g[x] = (argb >> 8) & 0xff;
+        b[x] = argb & 0xff;
+        if(premultiply){
+          final float a255 = pa * (1.0f / 255.0f);
+          r[x] *= a255;
+          g[x] *= a255;
+          b[x] *= a255;
+        }
+      }
+      c.apply(a);
+      c.apply(r);
+      c.apply(g);
+      c.apply(b);
+      for(int x = 0, index = y; x < width; ++x, index += height){
+        float fa = a[x], fr = r[x], fg = g[x], fb = b[x];
+        if(unpremultiply && fa != 0 && fa != 255){
+          final float f = 255.0f / fa;
+          fr *= f;
+          fg *= f;
+          fb *= f;
+        }
+        out[index] = (clamp(fa) << 24) | (clamp(fr) << 16) | (clamp(fg) << 8) | clamp(fb);
+      }
+    }
+  }
+
+  private static int clamp(float v){
+    final int i = (int)(v + 0.5f);
+    return i < 0 ? 0 : (i > 255 ? 255 : i);
+  }
+
+  /**
+   * Filter coefficients for a given standard deviation, normalized so that
+   * w[n] = B * x[n] + b1 * w[n-1] + b2 * w[n-2] + b3 * w[n-3] (and likewise backwards).
+   */
+  static class Coefficients {
+    final double sigma;
+    final double B, b1, b2, b3;
+    // Triggs-Sdika matrix: maps the last three causal outputs to the anti-causal outputs at n-1, n and n+1
+    final double[] M = new double[9];
+
+    Coefficients(double sigma){
+      this.sigma = sigma = Math.max(0.5, sigma);
+      final double q = sigma >= 2.5 ? 0.98711 * sigma - 0.96330 : 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+      final double q2 = q * q, q3 = q2 * q;
+      final double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+      b1 = (2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0;
+      b2 = -(1.4281 * q2 + 1.26661 * q3) / b0;
+      b3 = 0.422205 * q3 / b0;
+      B = 1 - (b1 + b2 + b3);
+
+      // Column j of M is the response to a unit causal state w[n-1-j] past the right edge, where
+      // the input is zero. It is obtained by running both passes far enough for the state to vanish.
+      final int length = 3 + (int)Math.ceil(20 * sigma);
+      final double[] w = new double[length];
+      for(int j = 0; j < 3; ++j){
+        double w1 = j == 0 ? 1 : 0, w2 = j == 1 ? 1 : 0, w3 = j == 2 ? 1 : 0;
+        for(int i = 0; i < length; ++i){
+          w[i] = b1 * w1 + b2 * w2 + b3 * w3;
+          w3 = w2;
+          w2 = w1;
+          w1 = w[i];
+        }
+        // w[i] is the causal output at n + i; run the anti-causal pass down to n + 1
+        double y1 = 0, y2 = 0, y3 = 0;
+        for(int i = length - 1; i >= 0; --i){
+          final double y = B * w[i] + b1 * y1 + b2 * y2 + b3 * y3;
+          y3 = y2;
+          y2 = y1;
+          y1 = y;
+        }
+        // y1 = y[n], y2 = y[n + 1]; y[n - 1] depends on w[n - 1], which is 1 for j == 0
+        M[3 + j] = y1;
+        M[6 + j] = y2;
+        M[j] = B * (j == 0 ? 1 : 0) + b1 * y1 + b2 * y2 + b3 * y3;
+      }
+    }
+
+    /**
+     * Returns the smallest distance beyond which the impulse response of both passes sums to less
+     * than epsilon on each side.
+     */
+    int getSupport(double epsilon){
+      // The response is computed far enough for the rest of it to be negligible
+      final int length = 3 + (int)Math.ceil(40 * sigma);
+      final double[] h = new double[2 * length + 1];
+      double w1 = 0, w2 = 0, w3 = 0;
+      for(int i = 0; i < h.length; ++i){
+        final double w = (i == length ? B : 0) + b1 * w1 + b2 * w2 + b3 * w3;
+        h[i] = w;
+        w3 = w2;
+        w2 = w1;
+        w1 = w;
+      }
+      double y1 = 0, y2 = 0, y3 = 0;
+      for(int i = h.length - 1; i >= 0; --i){
+        final double y = B * h[i] + b1 * y1 + b2 * y2 + b3 * y3;
+        h[i] = y;
+        y3 = y2;
+        y2 = y1;
+        y1 = y;
+      }
+      // Sum both tails from the far end until one of them reaches epsilon
+      double left = 0, right = 0;
+      int d = length;
+      while(d > 0){
+        left += h[length - d];
+        right += h[length + d];
+        if(left >= epsilon || right >= epsilon){
+          break;
+        }
+        --d;
+      }
+      return d;
+    }
+
+    /**
+     * Filters a signal in place, with clamped edges.
+     */
+    void apply(float[] x){
+      final int n = x.length;
+      if(n == 0){
+        return;
+      }
+      // Causal pass, starting from the steady state of a constant signal x[0]
+      final double uplus = x[n - 1];
+      double w1 = x[0], w2 = w1, w3 = w1;
+      for(int i = 0; i < n; ++i){
+        final double w = B * x[i] + b1 * w1 + b2 * w2 + b3 * w3;
+        x[i] = (float)w;
+        w3 = w2;
+        w2 = w1;
+        w1 = w;
+      }
+      // Anti-causal pass, starting from the exact response to a signal clamped past the right edge
+      final double d0 = w1 - uplus;
+      final double d1 = w2 - uplus;
+      final double d2 = w3 - uplus;
+      double y1 = M[0] * d0 + M[1] * d1 + M[2] * d2 + uplus;
+      double y2 = M[3] * d0 + M[4] * d1 + M[5] * d2 + uplus;
+      double y3 = M[6] * d0 + M[7] * d1 + M[8] * d2 + uplus;
+      x[n - 1] = (float)y1;
+      for(int i = n - 2; i >= 0; --i){
+        final double y = B * x[i] + b1 * y1 + b2 * y2 + b3 * y3;
+        x[i] = (float)y;
+        y3 = y2;
+        y2 = y1;
+        y1 = y;
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.aviz.hybridvis.utils;
+
+/**
+ * Aggregates the progress of several tasks running concurrently into a single
+ * progress monitor. Each task reports to its own part (see getPart()), with a
+ * progress range of [0, MAXIMUM]; the parent monitor is advanced
+ * by the sum of all parts, so that its progress never goes backwards.
+ *
+ * The parts report the parent monitor as canceled when it is, or after abort() has
+ * been called, which lets a failing task stop its siblings cooperatively.
+ */
+public class AggregateProgressMonitor {
+  /** Maximum progress of each part */
+  public static final int MAXIMUM = 1000;
+
+  private final ProgressMonitor parent;
+  private final int[] progress;
+  private long total = 0;
+  private int lastReported = Integer.MIN_VALUE;
+  private volatile boolean aborted = false;
+
+  public AggregateProgressMonitor(ProgressMonitor parent, int parts){
+    this.parent = parent;
+    this.progress = new int[parts];
+  }
+
+  /**
+   * Returns the monitor to which part <pre>i</pre> must report.
+   */
+  public ProgressMonitor getPart(final int i){
+    return new ProgressMonitor(){
+      public int getMinimum(){
+        return 0;
+      }
+      public int getMaximum(){
+        return MAXIMUM;
+      }
+      public void setProgress(int nv){
+        update(i, nv);
+      }
+      public void close(){
+        update(i, MAXIMUM);
+      }
+      public boolean isCanceled(){
+        return AggregateProgressMonitor.this.isCanceled();
+      }
+      public void setNote(String note){
+        parent.setNote(note);
+      }
+    };
+  }
+
+  /**
+   * Marks every part as canceled.
+   */
+  public void abort(){
+    aborted = true;
+  }
+
+  public boolean isCanceled(){
+    return aborted || parent.isCanceled();
+  }
+
+  private synchronized void update(int part, int value){
+    value = Math.max(0, Math.min(MAXIMUM, value));
+    if(value <= progress[part]){
+      return;
+    }
+    total += value - progress[part];
+    progress[part] = value;
+    final int min = parent.getMinimum();
+    final long range = parent.getMaximum() - min;
+    final int reported = min + (int)(range * total / ((long)MAXIMUM * progress.length));
+    if(reported > lastReported){
+      lastReported = reported;
+      parent.setProgress(reported);
+    }
+  }
+}
@@ -26,7 +26,9 @@ import java.util.Hashtable;
  * A simple profiling class.
  * @author dragice
  *
+ * @deprecated Renders are profiled by RenderMetrics, which can be queried and written as JSON or CSV.
  */
+@Deprecated
 public class ExecTime {
 
 	static class Operation {
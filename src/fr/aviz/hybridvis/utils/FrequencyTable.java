@@ -0,0 +1,220 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.utils;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Frequencies of the coefficients of 2d FFT arrays of a given size, as laid out by
+ * FloatFFT_2D.realForwardFull(): float[rows][columns * 2], real and imaginary parts interleaved.
+ * They only depend on the dimensions of the arrays, so they are computed once and shared by
+ * ImageStatistics' radial binning and band-pass filters.
+ *
+ * Tables are cached per dimensions through soft references, so that tables for large images
+ * do not stay in memory. Each table is computed the first time it is needed.
+ */
+public class FrequencyTable {
+
+  /** Maximum number of dimensions whose tables are cached */
+  private static final int CACHE_SIZE = 4;
+
+  private static final Map<Long, SoftReference<FrequencyTable>> cache = new LinkedHashMap<Long, SoftReference<FrequencyTable>>(16, 0.75f, true){
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, SoftReference<FrequencyTable>> eldest){
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  protected final int rows;
+  protected final int rowLength;
+
+  // Coefficients of each ring, in row-major order: those of ring r are at [ringStarts[r], ringStarts[r + 1][
+  private int[] ringStarts;
+  private int[] ringRows;
+  private int[] ringColumns;
+
+  // Cycles per pixel of each coefficient, as used by band-pass filters, indexed by row * (rowLength + 1) / 2 + column / 2
+  private double[] cyclesPerPixel;
+
+  /**
+   * Returns the table of arrays of <pre>rows</pre> arrays of <pre>rowLength</pre> floats.
+   */
+  public static FrequencyTable get(int rows, int rowLength){
+    final Long key = ((long)rows << 32) | (rowLength & 0xffffffffL);
+    synchronized(cache){
+      final SoftReference<FrequencyTable> ref = cache.get(key);
+      FrequencyTable table = ref != null ? ref.get() : null;
+      if(table == null){
+        table = new FrequencyTable(rows, rowLength);
+        cache.put(key, new SoftReference<FrequencyTable>(table));
+      }
+      return table;
+    }
+  }
+
+  /**
+   * Returns the table of arrays of the same dimensions as <pre>floatArray2d</pre>.
+   */
+  public static FrequencyTable get(float[][] floatArray2d){
+    return get(floatArray2d.length, floatArray2d.length > 0 ? floatArray2d[0].length : 0);
+  }
+
+  protected FrequencyTable(int rows, int rowLength){
+    this.rows = rows;
+    this.rowLength = rowLength;
+  }
+
+  public int getRows(){
+    return rows;
+  }
+
+  public int getRowLength(){
+    return rowLength;
+  }
+
+  /**
+   * Returns the number of rings (bins) of radiallyBin2dFrequenciesTo1d().
+   */
+  public synchronized int getRingCount(){
+    computeRings();
+    return ringStarts.length - 1;
+  }
+
+  /**
+   * Returns, for each ring, the index of its first coefficient in getRingRows() and getRingColumns();
+   * the array has one more element holding the total number of coefficients.
+   */
+  public synchronized int[] getRingStarts(){
+    computeRings();
+    return ringStarts;
+  }
+
+  /**
+   * Returns the first index (row) of each coefficient in the arrays, grouped by ring.
+   */
+  public synchronized int[] getRingRows(){
+    computeRings();
+    return ringRows;
+  }
+
+  /**
+   * Returns the second index (real part) of each coefficient in the arrays, grouped by ring.
+   */
+  public synchronized int[] getRingColumns(){
+    computeRings();
+    return ringColumns;
+  }
+
+  /**
+   * Returns the frequency in cycles per pixel of each coefficient, as used by band-pass filters,
+   * indexed by row * getColumnCount() + column / 2.
+   */
+  public synchronized double[] getCyclesPerPixel(){
+    if(cyclesPerPixel == null){
+      cyclesPerPixel = computeCyclesPerPixel();
+    }
+    return cyclesPerPixel;
+  }
+
+  /**
+   * Returns the number of complex coefficients per row.
+   */
+  public int getColumnCount(){
+    return (rowLength + 1) / 2;
+  }
+
+  /**
+   * Ring of each coefficient of the top half of the FFT (the bottom is symmetric), normalized
+   * by the longest dimension in pixels.
+   */
+  private void computeRings(){
+    if(ringStarts != null){
+      return;
+    }
+    final int w = rows;
+    final int h = (int) Math.ceil(rowLength / 2.0);
+    final int maxFreq = (int)Math.ceil(ImageStatistics.pythagoreanTherorem(w / 2.0, h / 2)) + 1;
+    final int perRow = (rowLength / 2 + 1) / 2;
+    final int[] bins = new int[w * perRow];
+    final int[] starts = new int[maxFreq + 1];
+    int n = 0;
+    for(int i=0; i < w; i++){
+      for(int j=0; j < rowLength/2; j = j+2){
+        int x = (i >= w / 2 ? i - w : i);
+        int y = j/2;
+        //get frequency (cycles/image)
+        double cyclesPerImage = Math.ceil(ImageStatistics.pythagoreanTherorem(x, y));
+        //convert to (cycles/pixel) / normalized by the longest dimension in pixels
+        double imagePixelsAlongOrientation = Math.min(
+            Math.abs((w * cyclesPerImage) / (2 * x)),
+            Math.abs((h * cyclesPerImage) / (2 * y)));
+        double cyclesPerPixel = (cyclesPerImage / imagePixelsAlongOrientation );
+        int bin = (int)(cyclesPerPixel * (maxFreq - 1));
+        bins[n++] = bin;
+        starts[bin + 1]++;
+      }
+    }
+    for(int r = 0; r < maxFreq; ++r){
+      starts[r + 1] += starts[r];
+    }
+    // Counting sort, which keeps coefficients in row-major order within each ring
+    final int[] next = starts.clone();
+    final int[] coefficientRows = new int[n];
+    final int[] coefficientColumns = new int[n];
+    n = 0;
+    for(int i=0; i < w; i++){
+      for(int j=0; j < rowLength/2; j = j+2){
+        final int k = next[bins[n++]]++;
+        coefficientRows[k] = i;
+        coefficientColumns[k] = j;
+      }
+    }
+    ringRows = coefficientRows;
+    ringColumns = coefficientColumns;
+    ringStarts = starts;
+  }
+
+  private double[] computeCyclesPerPixel(){
+    final int w = rows;
+    final int h = (int) Math.ceil(rowLength / 2.0);
+    final int columns = getColumnCount();
+    final double[] table = new double[w * columns];
+    for(int i=0; i < w; i++){
+      for(int j=0; j < rowLength; j = j+2){
+        int x = (i >= w / 2 ? i - w : i);
+        int y = (j >= rowLength / 4 ? j/2 - rowLength / 2 : j/2);
+        //get frequency (cycles/image)
+        double cyclesPerImage = Math.ceil(ImageStatistics.pythagoreanTherorem(x, y));
+        //convert to (cycles/pixel)
+        double imagePixelsAlongOrientation = Math.min(
+            Math.abs((w * cyclesPerImage) / (2 * x)),
+            Math.abs((h * cyclesPerImage) / (2 * y)));
+        table[i * columns + j / 2] = (cyclesPerImage / imagePixelsAlongOrientation / 2);
+      }
+    }
+    return table;
+  }
+}
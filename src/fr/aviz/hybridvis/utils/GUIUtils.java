@@ -71,7 +71,10 @@ public class GUIUtils {
 	 */
 	public static final boolean USE_TRUE_FULL_SCREEN = System.getProperty("os.name").toLowerCase().indexOf("mac") > -1;
 	
-	public final static Cursor NO_CURSOR = Toolkit.getDefaultToolkit()
+	/**
+	 * An invisible cursor, or null in headless mode (where cursors cannot be created).
+	 */
+	public final static Cursor NO_CURSOR = GraphicsEnvironment.isHeadless() ? null : Toolkit.getDefaultToolkit()
 	.createCustomCursor(
 			Toolkit.getDefaultToolkit().createImage(
 					new MemoryImageSource(16, 16, new int[16 * 16], 0,
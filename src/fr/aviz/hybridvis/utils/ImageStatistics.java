@@ -20,17 +20,25 @@
 
 package fr.aviz.hybridvis.utils;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.Stroke;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.imageio.ImageIO;
 
@@ -38,6 +46,7 @@ import edu.emory.mathcs.jtransforms.fft.FloatFFT_2D;
 import fr.aviz.hybridvis.display.ClientDisplayConfiguration;
 import fr.aviz.hybridvis.display.DisplayConfiguration;
 import fr.aviz.hybridvis.display.WILDDisplay;
+import fr.aviz.hybridvis.filters.ParallelRows;
 import fr.aviz.hybridvis.models.CSF;
 import fr.aviz.hybridvis.models.FrequenciesAndAngles;
 
@@ -47,7 +56,28 @@ public class ImageStatistics {
 
   protected static final float DISPLAY_PIXEL_DENSITY = 1f/40f; // cm/pixel
   //protected static DisplayConfiguration displayConfiguration = new WILDDisplay();
-  protected static DisplayConfiguration displayConfiguration = new ClientDisplayConfiguration(0);
+  // No screen in headless mode
+  protected static DisplayConfiguration displayConfiguration = GraphicsEnvironment.isHeadless() ? null : new ClientDisplayConfiguration(0);
+
+  /** Maximum size of the samples taken by getSpectrumSample() */
+  public static final int SPECTRUM_SAMPLE_SIZE = 1024;
+
+  /** Maximum number of idle FFT plans kept by getFFT() */
+  protected static final int FFT_PLAN_CACHE_SIZE = 8;
+
+  // Idle FFT plans keyed by dimensions, least recently released first. FloatFFT_2D keeps scratch
+  // buffers, so a plan is taken out of the cache while in use and put back by releaseFFT().
+  private static final Map<Long, FloatFFT_2D> fftPlans = new LinkedHashMap<Long, FloatFFT_2D>(){
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, FloatFFT_2D> eldest){
+      return size() > FFT_PLAN_CACHE_SIZE;
+    }
+  };
+
+  // Float array reused by get1dFrequencies() for images no larger than spectrum samples
+  private static final ThreadLocal<float[][]> spectrumBuffer = new ThreadLocal<float[][]>();
 
   int bandCenter = 10;
   int bandSpread = 2;
@@ -283,11 +313,16 @@ public class ImageStatistics {
       double minPixelsPerCycle, double maxPixelsPerCycle, boolean invertBandPass){
     float[][] imageAsFloatArray = bufferedImageRegionToFloatArray2d(inputImage, 
         0, inputImage.getWidth(), 0, inputImage.getHeight());
-    FloatFFT_2D fft = new FloatFFT_2D(imageAsFloatArray.length, 
-        imageAsFloatArray[0].length/2);
-    fft.realForwardFull(imageAsFloatArray);
-    bandPassFloatArray(imageAsFloatArray, 1/maxPixelsPerCycle, 1/minPixelsPerCycle, false, invertBandPass);
-    fft.complexInverse(imageAsFloatArray, true);
+    final int rows = imageAsFloatArray.length;
+    final int columns = imageAsFloatArray[0].length/2;
+    FloatFFT_2D fft = getFFT(rows, columns);
+    try{
+      fft.realForwardFull(imageAsFloatArray);
+      bandPassFloatArray(imageAsFloatArray, 1/maxPixelsPerCycle, 1/minPixelsPerCycle, false, invertBandPass);
+      fft.complexInverse(imageAsFloatArray, true);
+    } finally{
+      releaseFFT(rows, columns, fft);
+    }
     BufferedImage outputImage = new BufferedImage(inputImage.getWidth(), inputImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
     floatArray2dToImageRegion(imageAsFloatArray, outputImage, false, 0, 0);
     return outputImage;
@@ -435,38 +470,28 @@ public class ImageStatistics {
    * @return A 1d array containing the average gain for each frequency. Indexed
    *   by (cycles/pixel) / longest dimension in pixels.
    */
-  public static float[] radiallyBin2dFrequenciesTo1d(float[][] floatArray2d){
-
-    //determine maximum frequency and use it to size the output array
-    int w = floatArray2d.length;
-    int h = (int) Math.ceil(floatArray2d[0].length / 2.0);
-    int maxFreq = (int)Math.ceil(pythagoreanTherorem(w / 2.0, h / 2)) + 1;
-    float[] frequencySums = new float[maxFreq];
-    float[] frequencyCount = new float[maxFreq];
-
-    //sample all pixels in the top half of the FFT (bottom is symmetric)
-    for(int i=0; i < floatArray2d.length; i++){
-      for(int j=0; j < floatArray2d[i].length/2; j = j+2){
-        int x = (i >= floatArray2d.length / 2 ? i - floatArray2d.length : i);
-        int y = j/2;
-        //get frequency (cycles/image)
-        double cyclesPerImage = Math.ceil(pythagoreanTherorem(x, y));
-        //convert to (cycles/pixel) / normalized by the longest dimension in pixels
-        double imagePixelsAlongOrientation = Math.min(
-            Math.abs((w * cyclesPerImage) / (2 * x)),
-            Math.abs((h * cyclesPerImage) / (2 * y)));
-        double cyclesPerPixel = (cyclesPerImage / imagePixelsAlongOrientation );
-        int normalizedCyclesPerPixel = (int)(cyclesPerPixel * (maxFreq - 1));
-        float arrayVal = floatArray2d[i][j];
-        frequencySums[normalizedCyclesPerPixel] += arrayVal;
-        frequencyCount[normalizedCyclesPerPixel]++;
+  public static float[] radiallyBin2dFrequenciesTo1d(final float[][] floatArray2d){
+
+    //the output array is sized by the maximum frequency; rings only depend on the dimensions
+    final FrequencyTable table = FrequencyTable.get(floatArray2d);
+    final int[] ringStarts = table.getRingStarts();
+    final int[] ringRows = table.getRingRows();
+    final int[] ringColumns = table.getRingColumns();
+    final int maxFreq = table.getRingCount();
+    final float[] frequencySums = new float[maxFreq];
+
+    //average the pixels of each ring in the top half of the FFT (bottom is symmetric)
+    ParallelRows.forEach(maxFreq, Math.max(1, ringRows.length / maxFreq), new ParallelRows.Rows(){
+      public void run(int from, int to){
+        for(int r = from; r < to; r++){
+          float sum = 0;
+          for(int k = ringStarts[r]; k < ringStarts[r + 1]; k++){
+            sum += floatArray2d[ringRows[k]][ringColumns[k]];
+          }
+          frequencySums[r] = sum / Math.max((float)(ringStarts[r + 1] - ringStarts[r]), 1);
+        }
       }
-    }
-
-    //normalize by count
-    for(int i=0; i < maxFreq; i++){
-      frequencySums[i] /= Math.max(frequencyCount[i], 1);
-    }
+    });
     return frequencySums;
   }
 
@@ -517,15 +542,44 @@ public class ImageStatistics {
    * @return
    */
   public static float[] get1dFrequencies(BufferedImage inputImage){
-    float[][] imageFFT = bufferedImageRegionToFloatArray2d(inputImage, 0, 
-        inputImage.getWidth(), 0, inputImage.getHeight());
-    FloatFFT_2D fft = new FloatFFT_2D(imageFFT.length, imageFFT[0].length/2);
-    fft.realForwardFull(imageFFT);
+    final int w = inputImage.getWidth();
+    final int h = inputImage.getHeight();
+    // Spectra of samples are computed over and over at the same size, so reuse their array
+    final boolean reuse = w <= SPECTRUM_SAMPLE_SIZE && h <= SPECTRUM_SAMPLE_SIZE;
+    float[][] imageFFT = bufferedImageRegionToFloatArray2d(inputImage, 0, w, 0, h,
+        reuse ? spectrumBuffer.get() : null);
+    if(reuse){
+      spectrumBuffer.set(imageFFT);
+    }
+    FloatFFT_2D fft = getFFT(w, h);
+    try{
+      fft.realForwardFull(imageFFT);
+    } finally{
+      releaseFFT(w, h, fft);
+    }
     absFloatArray(imageFFT);
     float[] frequency1d = radiallyBin2dFrequenciesTo1d(imageFFT);
     return frequency1d;
   }
 
+  /**
+   * Returns a copy of the centered window of an image whose dimensions are the largest powers of two
+   * not exceeding SPECTRUM_SAMPLE_SIZE and the image dimensions. Samples keep the pixel scale of the image,
+   * so their spectra describe the same frequencies, and are much faster to transform than whole images.
+   * @param image
+   * @return
+   */
+  public static BufferedImage getSpectrumSample(BufferedImage image){
+    final int w = Integer.highestOneBit(Math.min(image.getWidth(), SPECTRUM_SAMPLE_SIZE));
+    final int h = Integer.highestOneBit(Math.min(image.getHeight(), SPECTRUM_SAMPLE_SIZE));
+    final BufferedImage sample = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = sample.createGraphics();
+    g.setComposite(AlphaComposite.Src);
+    g.drawImage(image, -(image.getWidth() - w) / 2, -(image.getHeight() - h) / 2, null);
+    g.dispose();
+    return sample;
+  }
+
   /**
    * Paints the contents of a 2d float array into a subsection of a PImage. 
    * @param floatArray2d
@@ -614,16 +668,101 @@ public class ImageStatistics {
    * @return
    */
   protected static float[][] bufferedImageRegionToFloatArray2d(BufferedImage bufferedImage, int x0, int x1, int y0, int y1){
+    return bufferedImageRegionToFloatArray2d(bufferedImage, x0, x1, y0, y1, null);
+  }
+
+  /**
+   * Convert a subsection of a BufferedImage to a 2d float array suitable for FFT, reusing
+   * <pre>outputArray</pre> if it has the right dimensions. Pixels are read a row at a time, straight
+   * from the data buffer of TYPE_INT_ARGB and TYPE_INT_RGB images.
+   * @param bufferedImage
+   * @param x0
+   * @param x1
+   * @param y0
+   * @param y1
+   * @param outputArray array to fill, or null
+   * @return outputArray, or a new array if it could not be reused
+   */
+  protected static float[][] bufferedImageRegionToFloatArray2d(BufferedImage bufferedImage, int x0, int x1, int y0, int y1,
+      float[][] outputArray){
     int imageWidth = x1 - x0;
     int imageHeight = y1 - y0;
-    float[][] outputArray = new float[imageWidth][imageHeight*2];
-    for(int i=0; i < Math.min(bufferedImage.getWidth()-x0,x1-x0); i++){
-      for(int j=0; j < Math.min(bufferedImage.getHeight()-y0,y1-y0); j++){
-        Color c = new Color(bufferedImage.getRGB(x0+i, y0+j));
-        outputArray[i][j] = (c.getRed() + c.getGreen() + c.getBlue())/3;
+    if(outputArray == null || outputArray.length != imageWidth
+        || (imageWidth > 0 && outputArray[0].length != imageHeight*2)){
+      outputArray = new float[imageWidth][imageHeight*2];
+    } else{
+      for(float[] column : outputArray){
+        Arrays.fill(column, 0f);
       }
     }
-    return outputArray;		
+    final int columns = Math.min(bufferedImage.getWidth()-x0,x1-x0);
+    final int rows = Math.min(bufferedImage.getHeight()-y0,y1-y0);
+    if(columns <= 0 || rows <= 0){
+      return outputArray;
+    }
+
+    int[] pixels = null;
+    int offset = 0;
+    int stride = 0;
+    final Raster raster = bufferedImage.getRaster();
+    if((bufferedImage.getType() == BufferedImage.TYPE_INT_ARGB || bufferedImage.getType() == BufferedImage.TYPE_INT_RGB)
+        && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+        && raster.getDataBuffer().getNumBanks() == 1){
+      final SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel)raster.getSampleModel();
+      pixels = ((DataBufferInt)raster.getDataBuffer()).getData();
+      stride = sampleModel.getScanlineStride();
+      offset = raster.getDataBuffer().getOffset() + sampleModel.getOffset(
+          x0 - raster.getSampleModelTranslateX(), y0 - raster.getSampleModelTranslateY());
+    }
+    final int[] row = pixels == null ? new int[columns] : null;
+    for(int j=0; j < rows; j++){
+      final int[] rowPixels;
+      final int rowOffset;
+      if(pixels != null){
+        rowPixels = pixels;
+        rowOffset = offset + j * stride;
+      } else{
+        rowPixels = bufferedImage.getRGB(x0, y0+j, columns, 1, row, 0, columns);
+        rowOffset = 0;
+      }
+      for(int i=0; i < columns; i++){
+        final int rgb = rowPixels[rowOffset + i];
+        outputArray[i][j] = (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff))/3;
+      }
+    }
+    return outputArray;
+  }
+
+  /**
+   * Returns an FFT plan for arrays of the given dimensions, taken from a cache of recently used
+   * plans if possible. A plan must not be shared between threads; return it with releaseFFT()
+   * once done with it.
+   * @param rows
+   * @param columns
+   * @return
+   */
+  protected static FloatFFT_2D getFFT(int rows, int columns){
+    FloatFFT_2D fft;
+    synchronized(fftPlans){
+      fft = fftPlans.remove(getFFTKey(rows, columns));
+    }
+    return fft != null ? fft : new FloatFFT_2D(rows, columns);
+  }
+
+  /**
+   * Returns a plan obtained from getFFT() to the cache.
+   * @param rows
+   * @param columns
+   * @param fft
+   */
+  protected static void releaseFFT(int rows, int columns, FloatFFT_2D fft){
+    synchronized(fftPlans){
+      fftPlans.put(getFFTKey(rows, columns), fft);
+    }
+  }
+
+  private static long getFFTKey(int rows, int columns){
+    return ((long)rows << 32) | (columns & 0xffffffffL);
   }
 
 
@@ -632,8 +771,14 @@ public class ImageStatistics {
    * @return
    */
   protected static float[][] fftAbsAndRescale(float[][] imageAsFloatArray){
-    FloatFFT_2D fft = new FloatFFT_2D(imageAsFloatArray.length, imageAsFloatArray[0].length/2);
-    fft.realForwardFull(imageAsFloatArray);
+    final int rows = imageAsFloatArray.length;
+    final int columns = imageAsFloatArray[0].length/2;
+    FloatFFT_2D fft = getFFT(rows, columns);
+    try{
+      fft.realForwardFull(imageAsFloatArray);
+    } finally{
+      releaseFFT(rows, columns, fft);
+    }
     absFloatArray(imageAsFloatArray);
     rescaleFloatArray(imageAsFloatArray, 1, 10000);
     logScaleFloatArray(imageAsFloatArray);
@@ -643,8 +788,14 @@ public class ImageStatistics {
 
 
   protected static float[][] fftReverse(float[][] fftFloatArray){
-    FloatFFT_2D fft = new FloatFFT_2D(fftFloatArray.length, fftFloatArray[0].length/2);
-    fft.realInverseFull(fftFloatArray, true);
+    final int rows = fftFloatArray.length;
+    final int columns = fftFloatArray[0].length/2;
+    FloatFFT_2D fft = getFFT(rows, columns);
+    try{
+      fft.realInverseFull(fftFloatArray, true);
+    } finally{
+      releaseFFT(rows, columns, fft);
+    }
     return fftFloatArray;
   }
 
@@ -733,42 +884,39 @@ public class ImageStatistics {
    * @param min
    * @param max
    */
-  protected static void bandPassFloatArray(float[][] floatArray2d, 
-      double minCyclesPerPixel, double maxCyclesPerPixel, boolean useGaussianBand, boolean invertBandPass){
-
-    //determine maximum frequency and use it to size the output array
-    int w = floatArray2d.length;
-    int h = (int) Math.ceil(floatArray2d[0].length / 2.0);
-
-    for(int i=0; i < floatArray2d.length; i++){
-      for(int j=0; j < floatArray2d[i].length; j = j+2){
-        int x = (i >= floatArray2d.length / 2 ? i - floatArray2d.length : i);
-        int y = (j >= floatArray2d[i].length / 4 ? j/2 - floatArray2d[i].length / 2 : j/2);
-        //get frequency (cycles/image)
-        double cyclesPerImage = Math.ceil(pythagoreanTherorem(x, y));
-        //convert to (cycles/pixel)
-        double imagePixelsAlongOrientation = Math.min(
-            Math.abs((w * cyclesPerImage) / (2 * x)),
-            Math.abs((h * cyclesPerImage) / (2 * y)));
-        double cyclesPerPixel = (cyclesPerImage / imagePixelsAlongOrientation / 2);
-
-        if(useGaussianBand){ 
-          //FIXME: Gaussian-band passed images don't seem to survive the conversion back to the spatial domain - do I need to treat the imaginary component differently?
-          double gaussian = gaussian(cyclesPerPixel, 1.0, (minCyclesPerPixel + maxCyclesPerPixel)/2, (maxCyclesPerPixel - minCyclesPerPixel)/10);
-          floatArray2d[i][j] *= gaussian;
-          floatArray2d[i][j + 1] *= gaussian;
-        }
-        else{
-          boolean removeThis = invertBandPass ?          
-              (cyclesPerPixel > minCyclesPerPixel && cyclesPerPixel < maxCyclesPerPixel) :
-                (cyclesPerPixel < minCyclesPerPixel || cyclesPerPixel > maxCyclesPerPixel);
-              if(removeThis){
-                floatArray2d[i][j] = 0;
-                floatArray2d[i][j+1] = 0;
-              }
+  protected static void bandPassFloatArray(final float[][] floatArray2d, 
+      final double minCyclesPerPixel, final double maxCyclesPerPixel, final boolean useGaussianBand, final boolean invertBandPass){
+
+    //frequencies of the coefficients only depend on the dimensions of the array
+    final FrequencyTable table = FrequencyTable.get(floatArray2d);
+    final double[] frequencies = table.getCyclesPerPixel();
+    final int columns = table.getColumnCount();
+
+    ParallelRows.forEach(floatArray2d.length, columns, new ParallelRows.Rows(){
+      public void run(int from, int to){
+        for(int i=from; i < to; i++){
+          for(int j=0; j < floatArray2d[i].length; j = j+2){
+            double cyclesPerPixel = frequencies[i * columns + j/2];
+
+            if(useGaussianBand){ 
+              //FIXME: Gaussian-band passed images don't seem to survive the conversion back to the spatial domain - do I need to treat the imaginary component differently?
+              double gaussian = gaussian(cyclesPerPixel, 1.0, (minCyclesPerPixel + maxCyclesPerPixel)/2, (maxCyclesPerPixel - minCyclesPerPixel)/10);
+              floatArray2d[i][j] *= gaussian;
+              floatArray2d[i][j + 1] *= gaussian;
+            }
+            else{
+              boolean removeThis = invertBandPass ?          
+                  (cyclesPerPixel > minCyclesPerPixel && cyclesPerPixel < maxCyclesPerPixel) :
+                    (cyclesPerPixel < minCyclesPerPixel || cyclesPerPixel > maxCyclesPerPixel);
+                  if(removeThis){
+                    floatArray2d[i][j] = 0;
+                    floatArray2d[i][j+1] = 0;
+                  }
+            }
+          }
         }
       }
-    }
+    });
   }
 
 
@@ -0,0 +1,487 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.aviz.hybridvis.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a 8-bit RGBA PNG image row by row, so that the whole image never needs to be
+ * held in memory (unlike ImageIO.write, which needs a complete RenderedImage).
+ *
+ * Rows must be supplied top to bottom as non-premultiplied ARGB ints (the layout of
+ * TYPE_INT_ARGB images). Each row is filtered with the adaptive heuristic recommended
+ * by the PNG specification (the filter type with the smallest sum of absolute values wins).
+ *
+ * Filtered rows are cut into blocks of BLOCK_SIZE bytes which can be compressed concurrently,
+ * in the manner of pigz: each block is deflated independently, primed with the last 32KB of
+ * the previous block as a preset dictionary, and ends on a byte boundary (sync flush), so that
+ * the compressed blocks concatenate into a single zlib stream. Compression ratio is within
+ * a fraction of a percent of a single-threaded deflate.
+ */
+public class PNGStreamWriter implements Closeable {
+  private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+  private static final int IDAT_CHUNK_SIZE = 1 << 16;
+  private static final int BYTES_PER_PIXEL = 4;
+  /** Size of the blocks of filtered data compressed independently */
+  public static final int BLOCK_SIZE = 1 << 20;
+  /** Size of a deflate window, and of the dictionary passed from one block to the next */
+  private static final int DICTIONARY_SIZE = 1 << 15;
+
+  private final DataOutputStream out;
+  private final int width;
+  private final int height;
+  private final int compressionLevel;
+  private final ChunkOutputStream idat;
+  private final Adler32 adler = new Adler32();
+  private int rowsWritten = 0;
+  private boolean closed = false;
+
+  // Raw bytes of the current and previous rows, and one output row per filter type
+  private byte[] prevRow;
+  private byte[] curRow;
+  private final byte[][] filtered = new byte[5][];
+
+  // Block being filled, and the blocks being compressed, in stream order
+  private byte[] block = new byte[BLOCK_SIZE];
+  private int blockLength = 0;
+  private byte[] dictionary = null;
+  private final ExecutorService executor;
+  private final int maxPendingBlocks;
+  private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+  /**
+   * Writes the PNG header. The caller remains responsible for closing <pre>out</pre>
+   * after close() has been called on this writer.
+   */
+  public PNGStreamWriter(OutputStream out, int width, int height) throws IOException{
+    this(out, width, height, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  public PNGStreamWriter(OutputStream out, int width, int height, int compressionLevel) throws IOException{
+    this(out, width, height, compressionLevel, 1);
+  }
+
+  /**
+   * @param compressionLevel - deflate level, see java.util.zip.Deflater.
+   * @param threads - number of threads compressing blocks. With a single thread, blocks
+   * are compressed synchronously by the thread calling writeRows().
+   */
+  public PNGStreamWriter(OutputStream out, int width, int height, int compressionLevel, int threads) throws IOException{
+    if(width <= 0 || height <= 0){
+      throw new IllegalArgumentException("Invalid image size: " + width + "x" + height);
+    }
+    if(threads <= 0){
+      throw new IllegalArgumentException("Invalid number of threads: " + threads);
+    }
+    this.out = new DataOutputStream(out);
+    this.width = width;
+    this.height = height;
+    this.compressionLevel = compressionLevel;
+    final int rowBytes = width * BYTES_PER_PIXEL;
+    prevRow = new byte[rowBytes];
+    curRow = new byte[rowBytes];
+    for(int i = 0; i < filtered.length; ++i){
+      filtered[i] = new byte[rowBytes + 1];
+      filtered[i][0] = (byte)i;
+    }
+
+    this.out.write(SIGNATURE);
+    final byte[] ihdr = new byte[13];
+    putInt(ihdr, 0, width);
+    putInt(ihdr, 4, height);
+    ihdr[8] = 8;  // bit depth
+    ihdr[9] = 6;  // color type: truecolor with alpha
+    ihdr[10] = 0; // compression: deflate
+    ihdr[11] = 0; // filter method: adaptive
+    ihdr[12] = 0; // no interlace
+    writeChunk(this.out, "IHDR", ihdr, 0, ihdr.length);
+
+    idat = new ChunkOutputStream(this.out, "IDAT", IDAT_CHUNK_SIZE);
+    // zlib header: deflate with a 32KB window, no preset dictionary (FCHECK makes it a multiple of 31)
+    idat.write(0x78);
+    idat.write(0x9c);
+
+    // Keep every thread busy, and one block ready for each of them
+    maxPendingBlocks = 2 * threads;
+    executor = threads > 1 ? Executors.newFixedThreadPool(threads, new ThreadFactory(){
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r){
+        final Thread t = new Thread(r, "PNGStreamWriter-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    }) : null;
+  }
+
+  public int getWidth(){
+    return width;
+  }
+
+  public int getHeight(){
+    return height;
+  }
+
+  /**
+   * Returns the number of rows written so far.
+   */
+  public int getRowsWritten(){
+    return rowsWritten;
+  }
+
+  /**
+   * Appends <pre>rows</pre> rows of ARGB pixels to the image.
+   * @param argb - pixel data; pixel (x, y) of the supplied rows is argb[offset + y * scanline + x].
+   */
+  public void writeRows(int[] argb, int offset, int scanline, int rows) throws IOException{
+    if(rowsWritten + rows > height){
+      throw new IllegalStateException("Too many rows: " + (rowsWritten + rows) + " > " + height);
+    }
+    for(int r = 0; r < rows; ++r){
+      final int rowOffset = offset + r * scanline;
+      for(int x = 0, i = 0; x < width; ++x, i += BYTES_PER_PIXEL){
+        final int p = argb[rowOffset + x];
+        curRow[i] = (byte)(p >> 16);
+        curRow[i + 1] = (byte)(p >> 8);
+        curRow[i + 2] = (byte)p;
+        curRow[i + 3] = (byte)(p >> 24);
+      }
+      final byte[] best = filterRow(curRow, rowsWritten == 0 ? null : prevRow, filtered);
+      append(best, best.length);
+      final byte[] tmp = prevRow;
+      prevRow = curRow;
+      curRow = tmp;
+      rowsWritten++;
+    }
+  }
+
+  /**
+   * Appends filtered data to the current block, and schedules the compression of full blocks.
+   */
+  private void append(byte[] data, int length) throws IOException{
+    adler.update(data, 0, length);
+    int offset = 0;
+    while(offset < length){
+      if(blockLength == block.length){
+        submitBlock(false);
+      }
+      final int n = Math.min(length - offset, block.length - blockLength);
+      System.arraycopy(data, offset, block, blockLength, n);
+      blockLength += n;
+      offset += n;
+    }
+  }
+
+  private void submitBlock(final boolean last) throws IOException{
+    final byte[] data = block;
+    final int length = blockLength;
+    final byte[] dict = dictionary;
+    final int level = compressionLevel;
+    if(executor == null){
+      writeCompressed(compressBlock(data, length, dict, level, last));
+    } else{
+      // Wait for the oldest block if too many are queued, to bound memory use
+      while(pending.size() >= maxPendingBlocks || (!pending.isEmpty() && pending.getFirst().isDone())){
+        writeCompressed(getBlock(pending.removeFirst()));
+      }
+      pending.add(executor.submit(new Callable<byte[]>(){
+        public byte[] call(){
+          return compressBlock(data, length, dict, level, last);
+        }
+      }));
+    }
+    if(!last){
+      dictionary = new byte[Math.min(DICTIONARY_SIZE, length)];
+      System.arraycopy(data, length - dictionary.length, dictionary, 0, dictionary.length);
+      block = new byte[BLOCK_SIZE];
+      blockLength = 0;
+    }
+  }
+
+  private void writeCompressed(byte[] data) throws IOException{
+    idat.write(data, 0, data.length);
+  }
+
+  private static byte[] getBlock(Future<byte[]> future) throws IOException{
+    try{
+      return future.get();
+    } catch(InterruptedException ie){
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", ie);
+    } catch(ExecutionException ee){
+      final Throwable cause = ee.getCause();
+      if(cause instanceof RuntimeException){
+        throw (RuntimeException)cause;
+      } else if(cause instanceof Error){
+        throw (Error)cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Compresses a block of data as raw deflate data that can be appended to the blocks before it.
+   * @param dictionary - end of the previous block, or null for the first block.
+   * @param last - if true, the deflate stream is terminated; otherwise it is sync flushed, so that
+   * the output ends on a byte boundary.
+   */
+  static byte[] compressBlock(byte[] data, int length, byte[] dictionary, int level, boolean last){
+    final Deflater deflater = new Deflater(level, true);
+    try{
+      if(dictionary != null){
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(data, 0, length);
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+      final byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+      if(last){
+        deflater.finish();
+        while(!deflater.finished()){
+          final int n = deflater.deflate(buffer);
+          compressed.write(buffer, 0, n);
+        }
+      } else{
+        // A full output buffer means there may be more output pending
+        int n;
+        do{
+          n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          compressed.write(buffer, 0, n);
+        } while(n == buffer.length);
+      }
+      return compressed.toByteArray();
+    } finally{
+      deflater.end();
+    }
+  }
+
+  /**
+   * Terminates the image data and writes the PNG trailer.
+   * @throws IllegalStateException - if fewer rows than the image height were written.
+   */
+  @Override
+  public void close() throws IOException{
+    if(closed){
+      return;
+    }
+    if(rowsWritten != height){
+      abort();
+      throw new IllegalStateException("Incomplete image: " + rowsWritten + " rows written out of " + height);
+    }
+    closed = true;
+    try{
+      submitBlock(true);
+      while(!pending.isEmpty()){
+        writeCompressed(getBlock(pending.removeFirst()));
+      }
+    } finally{
+      shutdown();
+    }
+    final byte[] checksum = new byte[4];
+    putInt(checksum, 0, (int)adler.getValue());
+    idat.write(checksum, 0, checksum.length);
+    idat.flush();
+    writeChunk(out, "IEND", new byte[0], 0, 0);
+    out.flush();
+  }
+
+  /**
+   * Stops compressing, leaving the PNG stream incomplete. Use this instead of close()
+   * when an image cannot be completed, to release the compression threads.
+   */
+  public void abort(){
+    closed = true;
+    for(Future<byte[]> future : pending){
+      future.cancel(false);
+    }
+    pending.clear();
+    shutdown();
+  }
+
+  private void shutdown(){
+    if(executor != null){
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Writes an image to a PNG file. Unlike ImageIO.write, this only converts
+   * a few rows of the image at a time.
+   */
+  public static void write(BufferedImage image, File file) throws IOException{
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    final int bandHeight = Math.max(1, Math.min(height, (1 << 20) / width));
+    final int[] rows = new int[width * bandHeight];
+    final OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+    try{
+      final PNGStreamWriter png = new PNGStreamWriter(os, width, height);
+      for(int y = 0; y < height; y += bandHeight){
+        final int h = Math.min(bandHeight, height - y);
+        image.getRGB(0, y, width, h, rows, 0, width);
+        png.writeRows(rows, 0, width, h);
+      }
+      png.close();
+    } finally{
+      os.close();
+    }
+  }
+
+  /**
+   * Applies the five PNG filter types to <pre>row</pre> into the buffers of <pre>filtered</pre>
+   * (one per filter type, with the filter type byte at index 0) and returns the one whose
+   * output has the smallest sum of absolute (signed) byte values.
+   * @param prev - previous row, or null for the first row.
+   */
+  static byte[] filterRow(byte[] row, byte[] prev, byte[][] filtered){
+    final int n = row.length;
+    final byte[] none = filtered[0], sub = filtered[1], up = filtered[2], avg = filtered[3], paeth = filtered[4];
+    long sNone = 0, sSub = 0, sUp = 0, sAvg = 0, sPaeth = 0;
+    for(int i = 0; i < n; ++i){
+      final int x = row[i] & 0xff;
+      final int a = i >= BYTES_PER_PIXEL ? row[i - BYTES_PER_PIXEL] & 0xff : 0;
+      final int b = prev != null ? prev[i] & 0xff : 0;
+      final int c = (prev != null && i >= BYTES_PER_PIXEL) ? prev[i - BYTES_PER_PIXEL] & 0xff : 0;
+
+      final byte vNone = (byte)x;
+      final byte vSub = (byte)(x - a);
+      final byte vUp = (byte)(x - b);
+      final byte vAvg = (byte)(x - ((a + b) >> 1));
+      final byte vPaeth = (byte)(x - paethPredictor(a, b, c));
+      none[i + 1] = vNone;
+      sub[i + 1] = vSub;
+      up[i + 1] = vUp;
+      avg[i + 1] = vAvg;
+      paeth[i + 1] = vPaeth;
+      sNone += Math.abs(vNone);
+      sSub += Math.abs(vSub);
+      sUp += Math.abs(vUp);
+      sAvg += Math.abs(vAvg);
+      sPaeth += Math.abs(vPaeth);
+    }
+    byte[] best = none;
+    long bestSum = sNone;
+    if(sSub < bestSum){ best = sub; bestSum = sSub; }
+    if(sUp < bestSum){ best = up; bestSum = sUp; }
+    if(sAvg < bestSum){ best = avg; bestSum = sAvg; }
+    if(sPaeth < bestSum){ best = paeth; }
+    return best;
+  }
+
+  private static int paethPredictor(int a, int b, int c){
+    final int p = a + b - c;
+    final int pa = Math.abs(p - a);
+    final int pb = Math.abs(p - b);
+    final int pc = Math.abs(p - c);
+    if(pa <= pb && pa <= pc){
+      return a;
+    } else if(pb <= pc){
+      return b;
+    }
+    return c;
+  }
+
+  static void putInt(byte[] buf, int offset, int v){
+    buf[offset] = (byte)(v >>> 24);
+    buf[offset + 1] = (byte)(v >>> 16);
+    buf[offset + 2] = (byte)(v >>> 8);
+    buf[offset + 3] = (byte)v;
+  }
+
+  static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException{
+    final byte[] typeBytes = type.getBytes("US-ASCII");
+    final CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, offset, length);
+    out.writeInt(length);
+    out.write(typeBytes);
+    out.write(data, offset, length);
+    out.writeInt((int)crc.getValue());
+  }
+
+  /**
+   * Splits whatever is written to it into chunks of a given type.
+   */
+  static class ChunkOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final String type;
+    private final byte[] buffer;
+    private int count = 0;
+
+    ChunkOutputStream(DataOutputStream out, String type, int chunkSize){
+      this.out = out;
+      this.type = type;
+      this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException{
+      if(count == buffer.length){
+        flushChunk();
+      }
+      buffer[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException{
+      while(len > 0){
+        if(count == buffer.length){
+          flushChunk();
+        }
+        final int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException{
+      flushChunk();
+      out.flush();
+    }
+
+    private void flushChunk() throws IOException{
+      if(count > 0){
+        writeChunk(out, type, buffer, 0, count);
+        count = 0;
+      }
+    }
+  }
+}
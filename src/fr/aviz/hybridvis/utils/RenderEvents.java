@@ -0,0 +1,122 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.aviz.hybridvis.utils;
+
+import java.awt.Rectangle;
+
+/**
+ * Java Flight Recorder events for the rendering and export of hybrid images: one event per hybrid image
+ * (or tile) rendered, per stage of its rendering (drawing, filtering, compositing...), per power spectrum
+ * analysis, and per image or band of image written to disk. Events can be recorded with the standard
+ * JFR tools, e.g. java -XX:StartFlightRecording=filename=render.jfr,settings=profile ..., and are listed
+ * under the "HybridVis" category.
+ *
+ * The event classes (package fr.aviz.hybridvis.utils.jfr) need the jdk.jfr API of JDK 11 (or 8u262) and
+ * later. They are loaded when this class is first used; on JVMs without Flight Recorder, the begin methods
+ * return events that do nothing. Events cost an allocation when a recording enables them, and nothing
+ * otherwise.
+ */
+public abstract class RenderEvents {
+
+  /**
+   * An event started by one of the begin methods.
+   */
+  public static interface Event {
+    /**
+     * Ends the event and commits it to the recordings that enable it.
+     * @param canceled - whether the rendering was canceled, or the export failed.
+     */
+    public void end(boolean canceled);
+  }
+
+  /** Event that is not recorded */
+  protected static final Event NONE = new Event(){
+    public void end(boolean canceled){
+    }
+  };
+
+  private static final RenderEvents events = load();
+
+  private static RenderEvents load(){
+    try{
+      return (RenderEvents)Class.forName("fr.aviz.hybridvis.utils.jfr.FlightRecorderEvents").getDeclaredConstructor().newInstance();
+    } catch(Exception e){
+      return null;
+    } catch(LinkageError e){
+      // No jdk.jfr API in this JVM
+      return null;
+    }
+  }
+
+  /**
+   * Returns whether this JVM supports the events (whether or not a recording is running).
+   */
+  public static boolean isAvailable(){
+    return events != null;
+  }
+
+  /**
+   * Starts the event of a hybrid image rendering.
+   * @param region - region rendered, in the coordinates of the wall image rendered at <pre>scale</pre>.
+   * @param scale - size of a wall pixel in the image, in pixels.
+   * @param hipassRadius - radius of the high-pass filter of the near layer, in image pixels.
+   * @param blurRadius - radius of the blur of the far layer, in image pixels.
+   */
+  public static Event beginRender(Rectangle region, double scale, double hipassRadius, double blurRadius){
+    return events == null ? NONE : events.render(region, scale, hipassRadius, blurRadius);
+  }
+
+  /**
+   * Starts the event of a stage of a hybrid image rendering.
+   * @param stage - name of the stage (see RenderMetrics).
+   * @param region - region rendered, as in beginRender().
+   * @param radius - radius of the filter applied by the stage, in image pixels, or 0.
+   */
+  public static Event beginStage(String stage, Rectangle region, double radius){
+    return events == null ? NONE : events.stage(stage, region, radius);
+  }
+
+  /**
+   * Starts the event of a power spectrum analysis.
+   * @param samples - number of images analyzed.
+   * @param pixels - total number of pixels analyzed.
+   */
+  public static Event beginSpectrum(int samples, long pixels){
+    return events == null ? NONE : events.spectrum(samples, pixels);
+  }
+
+  /**
+   * Starts the event of an export: encoding and writing a region of the wall image.
+   * @param file - file written.
+   * @param region - region written, in wall coordinates (or in the coordinates of a pyramid level).
+   */
+  public static Event beginExport(String file, Rectangle region){
+    return events == null ? NONE : events.export(file, region);
+  }
+
+  protected abstract Event render(Rectangle region, double scale, double hipassRadius, double blurRadius);
+
+  protected abstract Event stage(String stage, Rectangle region, double radius);
+
+  protected abstract Event spectrum(int samples, long pixels);
+
+  protected abstract Event export(String file, Rectangle region);
+}
@@ -0,0 +1,518 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.aviz.hybridvis.filters.BufferPool;
+
+/**
+ * Thread-safe registry of rendering metrics, replacing ExecTime: every hybrid image rendered by
+ * HybridImagePipeline.render() (and thus every renderHybridImage() call) is recorded as a Render,
+ * with the duration of each of its stages, the number of pixels rendered, the bytes allocated and
+ * its peak scratch memory. The registry keeps a histogram of the durations of each stage, the totals,
+ * and the last renders, which can be queried or written as JSON or CSV (see write()).
+ *
+ * Bytes allocated are counted for the threads running the stages (the calling thread and the thread
+ * rendering the near layer), when the JVM supports it; threads that filters spread rows on are not
+ * included. Scratch memory is the size of the images the render works in, plus the peak of the arrays
+ * obtained from BufferPool while it runs; the latter is process-wide, so concurrent renders (e.g. the
+ * tiles of an export) count each other's arrays.
+ */
+public class RenderMetrics {
+
+  /** Stages of a render (see HybridImagePipeline.render()) */
+  public static final String TOTAL = "total";
+  public static final String DRAW_NEAR = "drawNear";
+  public static final String HIPASS = "hipass";
+  public static final String DRAW_FAR = "drawFar";
+  public static final String BLUR = "blur";
+  public static final String BACKGROUND = "background";
+  public static final String COMPOSITE = "composite";
+  public static final String SPECTRUM_SAMPLES = "spectrumSamples";
+  public static final String COPY = "copy";
+
+  /** Stages in the order they are listed, when they have been recorded */
+  private static final String[] STAGES = {DRAW_NEAR, HIPASS, DRAW_FAR, BLUR, BACKGROUND, COMPOSITE, SPECTRUM_SAMPLES, COPY, TOTAL};
+
+  /** Number of renders kept by default */
+  public static final int DEFAULT_HISTORY = 1000;
+
+  private static final RenderMetrics defaultMetrics = new RenderMetrics(DEFAULT_HISTORY);
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private static final ThreadLocal<Render> lastRender = new ThreadLocal<Render>();
+
+  private final int history;
+  private final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+  private final Deque<Render> renders = new ArrayDeque<Render>();
+  private long renderCount = 0;
+  private long canceledCount = 0;
+  private long pixels = 0;
+  private long allocatedBytes = 0;
+  private long peakScratchBytes = 0;
+
+  /**
+   * @param history - number of renders kept (see getRenders()).
+   */
+  public RenderMetrics(int history){
+    this.history = history;
+  }
+
+  /**
+   * Returns the registry renders are recorded into by default.
+   */
+  public static RenderMetrics getDefault(){
+    return defaultMetrics;
+  }
+
+  /**
+   * Histogram of durations, in buckets of powers of two nanoseconds.
+   */
+  public static class Histogram {
+    private final long[] buckets = new long[64];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    synchronized void record(long nanos){
+      nanos = Math.max(nanos, 0);
+      buckets[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))]++;
+      count++;
+      sum += nanos;
+      min = Math.min(min, nanos);
+      max = Math.max(max, nanos);
+    }
+
+    public synchronized long getCount(){
+      return count;
+    }
+
+    /** Total duration, in milliseconds */
+    public synchronized double getTotal(){
+      return sum / 1e6;
+    }
+
+    /** Mean duration, in milliseconds */
+    public synchronized double getMean(){
+      return count == 0 ? 0 : sum / 1e6 / count;
+    }
+
+    /** Shortest duration, in milliseconds */
+    public synchronized double getMin(){
+      return count == 0 ? 0 : min / 1e6;
+    }
+
+    /** Longest duration, in milliseconds */
+    public synchronized double getMax(){
+      return max / 1e6;
+    }
+
+    /**
+     * Returns an estimate of a percentile of the durations, in milliseconds: the upper bound of the bucket
+     * that holds it, clamped to the recorded range.
+     * @param p - percentile, in [0, 100].
+     */
+    public synchronized double getPercentile(double p){
+      if(count == 0){
+        return 0;
+      }
+      final long rank = Math.max(1, (long)Math.ceil(p / 100 * count));
+      long seen = 0;
+      for(int i = 0; i < buckets.length; ++i){
+        seen += buckets[i];
+        if(seen >= rank){
+          final long upper = i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+          return Math.max(min, Math.min(max, upper)) / 1e6;
+        }
+      }
+      return max / 1e6;
+    }
+
+    /**
+     * Returns the number of durations in each bucket: bucket i holds durations in [2^i, 2^(i+1)[ ns.
+     */
+    public synchronized long[] getBuckets(){
+      return buckets.clone();
+    }
+  }
+
+  /**
+   * Metrics of a single render, filled while it runs (see start() and finish()).
+   */
+  public static class Render {
+    private final long time = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final int width;
+    private final int height;
+    private final long imageBytes;
+    private final Map<String, Long> stages = new LinkedHashMap<String, Long>();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong arrayPeak;
+    private final long threadAllocation0;
+    private long peakScratchBytes = 0;
+    private boolean canceled = false;
+
+    Render(int width, int height, long imageBytes){
+      this.width = width;
+      this.height = height;
+      this.imageBytes = imageBytes;
+      this.arrayPeak = BufferPool.trackPeak();
+      this.threadAllocation0 = getThreadAllocatedBytes();
+    }
+
+    /**
+     * Records the duration of a stage, added to the previous ones of the same stage.
+     */
+    public synchronized void addStage(String stage, long nanos){
+      final Long previous = stages.get(stage);
+      stages.put(stage, previous == null ? nanos : previous + nanos);
+    }
+
+    /**
+     * Adds bytes allocated by a thread other than the one that started the render (see getThreadAllocatedBytes()).
+     */
+    public void addAllocatedBytes(long bytes){
+      if(bytes > 0){
+        allocatedBytes.addAndGet(bytes);
+      }
+    }
+
+    public synchronized void setCanceled(boolean canceled){
+      this.canceled = canceled;
+    }
+
+    /** Start time, in milliseconds since the epoch */
+    public long getTime(){
+      return time;
+    }
+
+    public int getWidth(){
+      return width;
+    }
+
+    public int getHeight(){
+      return height;
+    }
+
+    public double getMegapixels(){
+      return width * (double)height / 1e6;
+    }
+
+    /**
+     * Returns the durations of the stages that ran, in milliseconds.
+     */
+    public synchronized Map<String, Double> getStages(){
+      final Map<String, Double> ms = new LinkedHashMap<String, Double>();
+      for(Map.Entry<String, Long> e : stages.entrySet()){
+        ms.put(e.getKey(), e.getValue() / 1e6);
+      }
+      return ms;
+    }
+
+    /** Duration of a stage in milliseconds, or NaN if it did not run */
+    public synchronized double getStage(String stage){
+      final Long nanos = stages.get(stage);
+      return nanos == null ? Double.NaN : nanos / 1e6;
+    }
+
+    public long getAllocatedBytes(){
+      return allocatedBytes.get();
+    }
+
+    public synchronized long getPeakScratchBytes(){
+      return peakScratchBytes;
+    }
+
+    public synchronized boolean isCanceled(){
+      return canceled;
+    }
+
+    synchronized void finish(){
+      addStage(TOTAL, System.nanoTime() - startNanos);
+      BufferPool.untrackPeak(arrayPeak);
+      peakScratchBytes = imageBytes + arrayPeak.get();
+      addAllocatedBytes(getThreadAllocatedBytes() - threadAllocation0);
+    }
+  }
+
+  /**
+   * Starts recording a render. Must be followed by finish() on the same thread.
+   * @param width - width of the rendered image.
+   * @param height - height of the rendered image.
+   * @param imageBytes - size of the images the render works in.
+   */
+  public Render start(int width, int height, long imageBytes){
+    return new Render(width, height, imageBytes);
+  }
+
+  /**
+   * Ends and records a render started with start().
+   */
+  public void finish(Render render){
+    render.finish();
+    lastRender.set(render);
+    final Map<String, Long> stages;
+    synchronized(render){
+      stages = new LinkedHashMap<String, Long>(render.stages);
+    }
+    synchronized(this){
+      if(render.isCanceled()){
+        canceledCount++;
+      } else{
+        renderCount++;
+        pixels += (long)render.getWidth() * render.getHeight();
+        for(Map.Entry<String, Long> e : stages.entrySet()){
+          Histogram h = histograms.get(e.getKey());
+          if(h == null){
+            h = new Histogram();
+            histograms.put(e.getKey(), h);
+          }
+          h.record(e.getValue());
+        }
+      }
+      allocatedBytes += render.getAllocatedBytes();
+      peakScratchBytes = Math.max(peakScratchBytes, render.getPeakScratchBytes());
+      if(history > 0){
+        if(renders.size() >= history){
+          renders.removeFirst();
+        }
+        renders.addLast(render);
+      }
+    }
+  }
+
+  /**
+   * Returns the last render finished by the current thread, in any registry, or null if there is none.
+   */
+  public static Render getLastRender(){
+    return lastRender.get();
+  }
+
+  /**
+   * Returns the stages of a render, in pipeline order.
+   */
+  public static List<String> getStageOrder(){
+    return Collections.unmodifiableList(Arrays.asList(STAGES));
+  }
+
+  /**
+   * Returns the bytes allocated so far by the current thread, or 0 if the JVM cannot tell.
+   */
+  public static long getThreadAllocatedBytes(){
+    if(threads instanceof com.sun.management.ThreadMXBean){
+      final com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean)threads;
+      if(t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()){
+        return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return 0;
+  }
+
+  /** Number of complete renders recorded */
+  public synchronized long getRenderCount(){
+    return renderCount;
+  }
+
+  /** Number of canceled renders recorded; their stages are not included in the histograms */
+  public synchronized long getCanceledCount(){
+    return canceledCount;
+  }
+
+  /** Megapixels of the complete renders recorded */
+  public synchronized double getTotalMegapixels(){
+    return pixels / 1e6;
+  }
+
+  /** Bytes allocated by all the renders recorded */
+  public synchronized long getTotalAllocatedBytes(){
+    return allocatedBytes;
+  }
+
+  /** Largest peak scratch memory of the renders recorded */
+  public synchronized long getPeakScratchBytes(){
+    return peakScratchBytes;
+  }
+
+  /**
+   * Returns the names of the stages recorded so far, in pipeline order.
+   */
+  public synchronized List<String> getStageNames(){
+    final List<String> names = new ArrayList<String>();
+    for(String stage : STAGES){
+      if(histograms.containsKey(stage)){
+        names.add(stage);
+      }
+    }
+    for(String stage : histograms.keySet()){
+      if(!names.contains(stage)){
+        names.add(stage);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Returns the histogram of the durations of a stage, or null if it has not been recorded.
+   */
+  public synchronized Histogram getHistogram(String stage){
+    return histograms.get(stage);
+  }
+
+  /**
+   * Returns the last renders recorded, oldest first.
+   */
+  public synchronized List<Render> getRenders(){
+    return Collections.unmodifiableList(new ArrayList<Render>(renders));
+  }
+
+  /**
+   * Forgets all the renders recorded.
+   */
+  public synchronized void reset(){
+    histograms.clear();
+    renders.clear();
+    renderCount = canceledCount = pixels = allocatedBytes = peakScratchBytes = 0;
+  }
+
+  /**
+   * Writes the metrics to a file, as CSV if its name ends with .csv and as JSON otherwise.
+   */
+  public void write(File file) throws IOException{
+    final Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+    try{
+      if(file.getName().toLowerCase(Locale.ROOT).endsWith(".csv")){
+        writeCSV(out);
+      } else{
+        writeJSON(out);
+      }
+    } finally{
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the totals, the histograms of the stages (durations in milliseconds) and the last renders as JSON.
+   */
+  public void writeJSON(Writer writer){
+    final PrintWriter out = new PrintWriter(writer);
+    final List<String> stages;
+    final List<Render> last;
+    synchronized(this){
+      stages = getStageNames();
+      last = getRenders();
+      out.println("{");
+      out.println("  \"renders\": " + renderCount + ",");
+      out.println("  \"canceled\": " + canceledCount + ",");
+      out.println("  \"megapixels\": " + format(getTotalMegapixels()) + ",");
+      out.println("  \"allocatedBytes\": " + allocatedBytes + ",");
+      out.println("  \"peakScratchBytes\": " + peakScratchBytes + ",");
+      out.println("  \"stages\": {");
+      for(int i = 0; i < stages.size(); ++i){
+        final Histogram h = histograms.get(stages.get(i));
+        out.print("    \"" + stages.get(i) + "\": {\"count\": " + h.getCount()
+            + ", \"total\": " + format(h.getTotal()) + ", \"mean\": " + format(h.getMean())
+            + ", \"min\": " + format(h.getMin()) + ", \"p50\": " + format(h.getPercentile(50))
+            + ", \"p90\": " + format(h.getPercentile(90)) + ", \"p99\": " + format(h.getPercentile(99))
+            + ", \"max\": " + format(h.getMax()) + ", \"buckets\": [");
+        final long[] buckets = h.getBuckets();
+        int last0 = buckets.length - 1;
+        while(last0 > 0 && buckets[last0] == 0){
+          last0--;
+        }
+        for(int b = 0; b <= last0; ++b){
+          out.print((b > 0 ? ", " : "") + buckets[b]);
+        }
+        out.println("]}" + (i < stages.size() - 1 ? "," : ""));
+      }
+      out.println("  },");
+    }
+    out.println("  \"history\": [");
+    for(int i = 0; i < last.size(); ++i){
+      final Render r = last.get(i);
+      out.print("    {\"time\": " + r.getTime() + ", \"width\": " + r.getWidth() + ", \"height\": " + r.getHeight()
+          + ", \"megapixels\": " + format(r.getMegapixels()) + ", \"canceled\": " + r.isCanceled()
+          + ", \"allocatedBytes\": " + r.getAllocatedBytes() + ", \"peakScratchBytes\": " + r.getPeakScratchBytes()
+          + ", \"stages\": {");
+      int s = 0;
+      for(Map.Entry<String, Double> e : r.getStages().entrySet()){
+        out.print((s++ > 0 ? ", " : "") + "\"" + e.getKey() + "\": " + format(e.getValue()));
+      }
+      out.println("}}" + (i < last.size() - 1 ? "," : ""));
+    }
+    out.println("  ]");
+    out.println("}");
+    out.flush();
+  }
+
+  /**
+   * Writes the last renders as CSV, one line per render, with the durations of the stages in milliseconds.
+   */
+  public void writeCSV(Writer writer){
+    final PrintWriter out = new PrintWriter(writer);
+    final List<String> stages;
+    final List<Render> last;
+    synchronized(this){
+      stages = getStageNames();
+      last = getRenders();
+    }
+    out.print("time,width,height,megapixels,canceled,allocatedBytes,peakScratchBytes");
+    for(String stage : stages){
+      out.print("," + stage + "Ms");
+    }
+    out.println();
+    for(Render r : last){
+      out.print(r.getTime() + "," + r.getWidth() + "," + r.getHeight() + "," + format(r.getMegapixels())
+          + "," + r.isCanceled() + "," + r.getAllocatedBytes() + "," + r.getPeakScratchBytes());
+      for(String stage : stages){
+        final double ms = r.getStage(stage);
+        out.print("," + (Double.isNaN(ms) ? "" : format(ms)));
+      }
+      out.println();
+    }
+    out.flush();
+  }
+
+  private static String format(double value){
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+}
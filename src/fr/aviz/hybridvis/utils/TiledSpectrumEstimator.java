@@ -0,0 +1,209 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.aviz.hybridvis.utils;
+
+import java.awt.image.BufferedImage;
+
+import edu.emory.mathcs.jtransforms.fft.FloatFFT_2D;
+import fr.aviz.hybridvis.filters.ParallelRows;
+
+/**
+ * Estimates the 1d frequency distribution of images too large to be transformed at once,
+ * such as full-resolution wall images, by averaging the spectra of overlapping square patches
+ * (Welch's method). Each patch has its mean removed and is weighted by a Hann window before
+ * being transformed, so that its borders do not add spurious high frequencies.
+ *
+ * The power of each frequency is averaged over the patches, and returned as an amplitude
+ * (the square root of the average), corrected for the energy absorbed by the window. Results are
+ * radially binned like ImageStatistics.get1dFrequencies() on an image of the patch size, so that
+ * they can be drawn with ImageStatistics.drawPowerSpectrums(). Unlike get1dFrequencies(), which
+ * bins the real part of the transform, they do not depend on the phase of the image content.
+ * Memory use depends on the patch size and the number of threads, not on the size of the image:
+ * patches are split in groups spread on the threads of ParallelRows, and each group is transformed
+ * one patch at a time and accumulated into its own sum.
+ */
+public class TiledSpectrumEstimator {
+
+  public static final int DEFAULT_PATCH_SIZE = ImageStatistics.SPECTRUM_SAMPLE_SIZE;
+  public static final double DEFAULT_OVERLAP = 0.5;
+  /** Mean of the square of a Hann window */
+  protected static final double HANN_POWER_GAIN = 0.375;
+
+  protected final int patchSize;
+  protected double overlap = DEFAULT_OVERLAP;
+
+  public TiledSpectrumEstimator(){
+    this(DEFAULT_PATCH_SIZE);
+  }
+
+  /**
+   * @param patchSize - maximum side of the patches; rounded down to a power of two.
+   */
+  public TiledSpectrumEstimator(int patchSize){
+    if(patchSize <= 1){
+      throw new IllegalArgumentException("Invalid patch size: " + patchSize);
+    }
+    this.patchSize = Integer.highestOneBit(patchSize);
+  }
+
+  public int getPatchSize(){
+    return patchSize;
+  }
+
+  public double getOverlap(){
+    return overlap;
+  }
+
+  /**
+   * Sets the fraction of each patch shared with the next one, in [0, 1). The default is 0.5.
+   */
+  public void setOverlap(double overlap){
+    if(!(overlap >= 0 && overlap < 1)){
+      throw new IllegalArgumentException("Invalid overlap: " + overlap);
+    }
+    this.overlap = overlap;
+  }
+
+  /**
+   * Returns the side of the patches used for an image: the patch size, or the largest power of two
+   * that fits in the image if it is smaller.
+   */
+  public int getPatchSize(BufferedImage image){
+    return Integer.highestOneBit(Math.max(1, Math.min(patchSize, Math.min(image.getWidth(), image.getHeight()))));
+  }
+
+  /**
+   * Returns the positions of the patches along a dimension of the image: evenly spaced by
+   * patch * (1 - overlap), and centered so that the pixels left out are split between both ends.
+   */
+  protected int[] getPatchPositions(int length, int patch){
+    final int step = Math.max(1, (int)Math.round(patch * (1 - overlap)));
+    final int count = (length - patch) / step + 1;
+    final int start = (length - patch - (count - 1) * step) / 2;
+    final int[] positions = new int[count];
+    for(int i = 0; i < count; ++i){
+      positions[i] = start + i * step;
+    }
+    return positions;
+  }
+
+  /**
+   * Estimates the 1d frequency distribution of an image. Patches are spread on the threads of
+   * ParallelRows, and the CancellationToken of the calling thread, if any, is checked between groups of patches.
+   * @return an array in the format of ImageStatistics.get1dFrequencies().
+   * @throws java.util.concurrent.CancellationException if the current token of the calling thread is canceled.
+   */
+  public float[] get1dFrequencies(final BufferedImage image){
+    final int patch = getPatchSize(image);
+    final int[] xs = getPatchPositions(image.getWidth(), patch);
+    final int[] ys = getPatchPositions(image.getHeight(), patch);
+    final int patchCount = xs.length * ys.length;
+    final float[] window = createHannWindow(patch);
+
+    // One sum per group of patches; groups are summed in order, so that results do not depend on scheduling
+    final int groups = Math.min(patchCount, ParallelRows.getParallelism());
+    final float[][][] sums = new float[groups][][];
+    ParallelRows.forEach(groups, patch * patch * (patchCount / groups), new ParallelRows.Rows(){
+      public void run(int from, int to){
+        final float[][] sum = new float[patch][patch * 2];
+        float[][] buffer = null;
+        final FloatFFT_2D fft = ImageStatistics.getFFT(patch, patch);
+        try{
+          for(int p = (int)((long)patchCount * from / groups); p < (long)patchCount * to / groups; ++p){
+            final int x = xs[p % xs.length];
+            final int y = ys[p / xs.length];
+            buffer = ImageStatistics.bufferedImageRegionToFloatArray2d(image, x, x + patch, y, y + patch, buffer);
+            applyWindow(buffer, window);
+            fft.realForwardFull(buffer);
+            for(int i = 0; i < patch; ++i){
+              final float[] column = buffer[i];
+              final float[] sumColumn = sum[i];
+              for(int j = 0; j < column.length; j += 2){
+                sumColumn[j] += column[j] * column[j] + column[j + 1] * column[j + 1];
+              }
+            }
+          }
+        } finally{
+          ImageStatistics.releaseFFT(patch, patch, fft);
+        }
+        sums[from] = sum;
+      }
+    });
+
+    float[][] total = null;
+    for(float[][] sum : sums){
+      if(sum == null){
+        continue;
+      }
+      if(total == null){
+        total = sum;
+      } else{
+        for(int i = 0; i < patch; ++i){
+          for(int j = 0; j < total[i].length; j += 2){
+            total[i][j] += sum[i][j];
+          }
+        }
+      }
+    }
+    // Average, and undo the loss of energy due to the window (3/8 of the power per dimension for a Hann window)
+    final double scale = 1.0 / (patchCount * HANN_POWER_GAIN * HANN_POWER_GAIN);
+    for(int i = 0; i < patch; ++i){
+      for(int j = 0; j < total[i].length; j += 2){
+        total[i][j] = (float)Math.sqrt(total[i][j] * scale);
+      }
+    }
+    return ImageStatistics.radiallyBin2dFrequenciesTo1d(total);
+  }
+
+  /**
+   * Returns the coefficients of a periodic Hann window of the given length.
+   */
+  protected static float[] createHannWindow(int length){
+    final float[] window = new float[length];
+    for(int i = 0; i < length; ++i){
+      window[i] = (float)(0.5 * (1 - Math.cos(2 * Math.PI * i / length)));
+    }
+    return window;
+  }
+
+  /**
+   * Removes the mean of a patch, as stored by ImageStatistics.bufferedImageRegionToFloatArray2d(),
+   * and multiplies it by a separable window.
+   */
+  protected static void applyWindow(float[][] patch, float[] window){
+    final int h = window.length;
+    double mean = 0;
+    for(float[] column : patch){
+      for(int j = 0; j < h; ++j){
+        mean += column[j];
+      }
+    }
+    final float m = (float)(mean / (patch.length * h));
+    for(int i = 0; i < patch.length; ++i){
+      final float[] column = patch[i];
+      final float wi = window[i];
+      for(int j = 0; j < h; ++j){
+        column[j] = (column[j] - m) * wi * window[j];
+      }
+    }
+  }
+}
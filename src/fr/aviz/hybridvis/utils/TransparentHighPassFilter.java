@@ -16,9 +16,7 @@ limitations under the License.
 
 package fr.aviz.hybridvis.utils;
 
-import java.awt.image.BufferedImage;
-
-import com.jhlabs.image.HighPassFilter;
+import fr.aviz.hybridvis.filters.HighPassFilter;
 
 /**
  * Applies hi-pass then makes gray transparent.
@@ -30,52 +28,23 @@ public class TransparentHighPassFilter extends HighPassFilter {
 	public TransparentHighPassFilter() {
 		super();
 	}
-	
-    @Override
-	public BufferedImage filter( BufferedImage src, BufferedImage dst ) {
-        int width = src.getWidth();
-        int height = src.getHeight();
-
-        if ( dst == null )
-            dst = createCompatibleDestImage( src, null );
-
-        int[] inPixels = new int[width*height];
-        int[] outPixels = new int[width*height];
-        src.getRGB( 0, 0, width, height, inPixels, 0, width );
 
-		if ( radius > 0 ) {
-			convolveAndTranspose(kernel, inPixels, outPixels, width, height, alpha, alpha && premultiplyAlpha, false, CLAMP_EDGES);
-			convolveAndTranspose(kernel, outPixels, inPixels, height, width, alpha, false, alpha && premultiplyAlpha, CLAMP_EDGES);
-		}
+	@Override
+	protected int combine(int rgb1, int rgb2) {
+		int r1 = (rgb1 >> 16) & 0xff;
+		int g1 = (rgb1 >> 8) & 0xff;
+		int b1 = rgb1 & 0xff;
 
-        src.getRGB( 0, 0, width, height, outPixels, 0, width );
+//		int a2 = (rgb2 >> 24) & 0xff;
+		int r2 = (rgb2 >> 16) & 0xff;
+		int g2 = (rgb2 >> 8) & 0xff;
+		int b2 = rgb2 & 0xff;
 
-		int index = 0;
-		for ( int y = 0; y < height; y++ ) {
-			for ( int x = 0; x < width; x++ ) {
-				int rgb1 = outPixels[index];
-				int a1 = (rgb1 >> 24) & 0xff;
-				int r1 = (rgb1 >> 16) & 0xff;
-				int g1 = (rgb1 >> 8) & 0xff;
-				int b1 = rgb1 & 0xff;
+		r1 = (r1 + 255-r2) / 2;
+		g1 = (g1 + 255-g2) / 2;
+		b1 = (b1 + 255-b2) / 2;
+		int a1 = Math.min(255, 4 * Math.max(Math.max(Math.abs(127 - r1), Math.abs(127 - g1)), Math.abs(127 - b1)));
 
-				int rgb2 = inPixels[index];
-//				int a2 = (rgb2 >> 24) & 0xff;
-				int r2 = (rgb2 >> 16) & 0xff;
-				int g2 = (rgb2 >> 8) & 0xff;
-				int b2 = rgb2 & 0xff;
-
-				r1 = (r1 + 255-r2) / 2;
-				g1 = (g1 + 255-g2) / 2;
-				b1 = (b1 + 255-b2) / 2;
-				a1 = Math.min(255, 4 * Math.max(Math.max(Math.abs(127 - r1), Math.abs(127 - g1)), Math.abs(127 - b1)));
-
-				inPixels[index] = (a1 << 24) | (r1 << 16) | (g1 << 8) | b1;
-				index++;
-			}
-		}
-
-        dst.setRGB( 0, 0, width, height, inPixels, 0, width );
-        return dst;
-    }
+		return (a1 << 24) | (r1 << 16) | (g1 << 8) | b1;
+	}
 }
@@ -0,0 +1,189 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.aviz.hybridvis.utils.jfr;
+
+import java.awt.Rectangle;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import fr.aviz.hybridvis.utils.RenderEvents;
+
+/**
+ * Flight Recorder implementation of RenderEvents, loaded by RenderEvents when the jdk.jfr API is available.
+ * This package is only compiled by JDKs providing that API (see build.xml).
+ */
+public class FlightRecorderEvents extends RenderEvents {
+
+  @Override
+  protected Event render(Rectangle region, double scale, double hipassRadius, double blurRadius){
+    final RenderEvent event = new RenderEvent();
+    if(!event.isEnabled()){
+      return NONE;
+    }
+    event.setRegion(region);
+    event.scale = scale;
+    event.hipassRadius = hipassRadius;
+    event.blurRadius = blurRadius;
+    event.begin();
+    return event;
+  }
+
+  @Override
+  protected Event stage(String stage, Rectangle region, double radius){
+    final StageEvent event = new StageEvent();
+    if(!event.isEnabled()){
+      return NONE;
+    }
+    event.stage = stage;
+    event.setRegion(region);
+    event.radius = radius;
+    event.begin();
+    return event;
+  }
+
+  @Override
+  protected Event spectrum(int samples, long pixels){
+    final SpectrumEvent event = new SpectrumEvent();
+    if(!event.isEnabled()){
+      return NONE;
+    }
+    event.samples = samples;
+    event.pixels = pixels;
+    event.begin();
+    return event;
+  }
+
+  @Override
+  protected Event export(String file, Rectangle region){
+    final ExportEvent event = new ExportEvent();
+    if(!event.isEnabled()){
+      return NONE;
+    }
+    event.file = file;
+    event.setRegion(region);
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Fields shared by the events about a region of an image.
+   */
+  abstract static class RegionEvent extends jdk.jfr.Event implements Event {
+    @Label("X")
+    int x;
+
+    @Label("Y")
+    int y;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Canceled")
+    boolean canceled;
+
+    void setRegion(Rectangle region){
+      x = region.x;
+      y = region.y;
+      width = region.width;
+      height = region.height;
+      pixels = (long)region.width * region.height;
+    }
+
+    public void end(boolean canceled){
+      this.canceled = canceled;
+      commit();
+    }
+  }
+
+  @Name("fr.aviz.hybridvis.Render")
+  @Label("Hybrid Image Render")
+  @Description("Rendering of a hybrid image or of a tile of it, in the coordinates of the wall image rendered at the given scale")
+  @Category({"HybridVis", "Rendering"})
+  @StackTrace(false)
+  static class RenderEvent extends RegionEvent {
+    @Label("Scale")
+    @Description("Size of a wall pixel in the image, in pixels")
+    double scale;
+
+    @Label("High-Pass Radius")
+    @Description("Radius of the high-pass filter of the near layer, in image pixels")
+    double hipassRadius;
+
+    @Label("Blur Radius")
+    @Description("Radius of the blur of the far layer, in image pixels")
+    double blurRadius;
+  }
+
+  @Name("fr.aviz.hybridvis.RenderStage")
+  @Label("Hybrid Image Render Stage")
+  @Description("Stage of the rendering of a hybrid image: drawing, filtering or compositing layers, taking spectrum samples...")
+  @Category({"HybridVis", "Rendering"})
+  @StackTrace(false)
+  static class StageEvent extends RegionEvent {
+    @Label("Stage")
+    String stage;
+
+    @Label("Radius")
+    @Description("Radius of the filter applied by the stage, in image pixels")
+    double radius;
+  }
+
+  @Name("fr.aviz.hybridvis.Spectrum")
+  @Label("Power Spectrum Analysis")
+  @Category({"HybridVis", "Analysis"})
+  @StackTrace(false)
+  static class SpectrumEvent extends jdk.jfr.Event implements Event {
+    @Label("Samples")
+    int samples;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Canceled")
+    @Description("Whether the result was superseded by a later image")
+    boolean canceled;
+
+    public void end(boolean canceled){
+      this.canceled = canceled;
+      commit();
+    }
+  }
+
+  @Name("fr.aviz.hybridvis.Export")
+  @Label("Hybrid Image Export")
+  @Description("Encoding and writing of a region of the wall image to disk")
+  @Category({"HybridVis", "Export"})
+  @StackTrace(false)
+  static class ExportEvent extends RegionEvent {
+    @Label("File")
+    String file;
+  }
+}
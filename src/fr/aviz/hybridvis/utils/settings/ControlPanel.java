@@ -123,6 +123,8 @@ public class ControlPanel extends JPanel {
 			widget = new JFloatSlider(o, f, options.min(), options.max(), options.majorTick(), options.minorTick(), options.precision(), options.pow());
 		else if (type == int.class)
 			widget = new JFloatSlider(o, f, options.min(), options.max(), options.majorTick(), options.minorTick(), 0, options.pow());
+		else if (type.isEnum())
+			widget = new JEnum(o, f);
 		else
 			widget = new JUnsupported(f);
 		return widget;
@@ -0,0 +1,96 @@
+/*
+ * HybridVis - Hybrid visualizations generator and library
+ * Copyright (C) 2016 Inria
+ *
+ * This file is part of HybridVis.
+ *
+ * HybridVis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HybridVis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with HybridVis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.aviz.hybridvis.utils.settings;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.lang.reflect.Field;
+
+import javax.swing.JComboBox;
+import javax.swing.JPanel;
+
+/**
+ * Combo box for fields of an enum type.
+ */
+public class JEnum extends JPanel {
+
+	final Settings object;
+	final Field field;
+	JComboBox<Object> combo;
+	
+	Object value;
+	
+	public JEnum(Settings object, Field field) {
+		super();
+		this.object = object;
+		this.field = field;
+		this.value = getObjectValue();
+		
+		// --- Create combo box
+		combo = new JComboBox<Object>(field.getType().getEnumConstants());
+		combo.setSelectedItem(value);
+		
+		// Listeners
+		combo.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				setObjectValue(combo.getSelectedItem());
+			}
+		});
+		object.addListener(new Settings.SettingsListener() {
+			@Override
+			public void settingsChangedFromControlPanel() {
+			}
+			@Override
+			public void settingsChangedFromCode() {
+				combo.setSelectedItem(getObjectValue());
+			}
+		});
+		
+		// Add components
+		setLayout(new BorderLayout());
+		add(combo, BorderLayout.CENTER);
+	}
+	
+	protected Object getObjectValue() {
+		field.setAccessible(true);
+		try {
+			return field.get(object);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	protected void setObjectValue(Object value) {
+		if (value == null || value == this.value)
+			return;
+		this.value = value;
+		field.setAccessible(true);
+		try {
+			field.set(object, value);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		object.fireSettingsChangedFromControlPanel();
+	}
+
+}